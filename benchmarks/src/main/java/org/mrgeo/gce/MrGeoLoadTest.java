@@ -0,0 +1,546 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
+import org.geotools.geometry.GeneralEnvelope;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.opengis.parameter.GeneralParameterValue;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process load generator for the reader.  A number of threads read from one MrGeoReader (made
+ * by MrGeoFormat, the way GeoServer does it), either replaying recorded requests or simulating map
+ * users panning and zooming around a layer, then throughput, latency percentiles, allocation rate
+ * and GC pauses are reported.
+ *
+ * Arguments are key=value:
+ *
+ *   threads=16         reading threads
+ *   warmup=10          seconds to run before measuring
+ *   duration=60        seconds to measure
+ *   layer=name         read an existing layer from the MrGeo image base, instead of a synthetic one
+ *   type=byte          synthetic layer tile type (byte, short, int, float, double)
+ *   bands=1            synthetic layer band count
+ *   tilesize=256       synthetic layer tile size
+ *   viewport=3         map tiles (256 x 256) across and down in a simulated user's view
+ *   requests=file      replay requests from a file instead of simulating users.  One request per
+ *                      line: layer,minx,miny,maxx,maxy,width,height (EPSG:4326), # for comments
+ *
+ * Anything else (i.e. tile.cache.size=0) is passed to the plugin as a config option.
+ */
+public class MrGeoLoadTest
+{
+private final static int MAP_SIZE = 256;
+
+private final Properties options;
+
+private final AbstractGridCoverage2DReader reader;
+private final String layer;
+private final Bounds bounds;
+private final int minZoom;
+private final int maxZoom;
+private final List<Request> recorded;
+
+private volatile boolean measuring = false;
+private volatile boolean running = true;
+
+private final AtomicLong errors = new AtomicLong();
+private final List<Long> gcPauses = new ArrayList<>();
+
+private static class Request
+{
+  final String layer;
+  final GeneralParameterValue[] parameters;
+  final long pixels;
+
+  Request(String layer, double w, double s, double e, double n, int width, int height)
+  {
+    this.layer = layer;
+    this.parameters = MrGeoReaderBenchmark.request(w, s, e, n, width, height);
+    this.pixels = (long) width * height;
+  }
+}
+
+// What one thread did while measuring
+private static class Result
+{
+  long[] latencies = new long[1024];
+  int count = 0;
+  long pixels = 0;
+
+  void record(long nanos, long px)
+  {
+    if (count == latencies.length)
+    {
+      latencies = Arrays.copyOf(latencies, count * 2);
+    }
+    latencies[count++] = nanos;
+    pixels += px;
+  }
+}
+
+public static void main(String[] args) throws Exception
+{
+  Properties options = new Properties();
+  options.setProperty("threads", "16");
+  options.setProperty("warmup", "10");
+  options.setProperty("duration", "60");
+  options.setProperty("type", "byte");
+  options.setProperty("bands", "1");
+  options.setProperty("tilesize", "256");
+  options.setProperty("viewport", "3");
+
+  Properties config = SyntheticPyramid.setup();
+
+  List<String> known = Arrays.asList("threads", "warmup", "duration", "layer", "type", "bands", "tilesize",
+      "viewport", "requests");
+  for (String arg : args)
+  {
+    int eq = arg.indexOf('=');
+    if (eq <= 0)
+    {
+      System.err.println("Arguments are key=value, not: " + arg);
+      System.exit(1);
+    }
+
+    String key = arg.substring(0, eq);
+    String value = arg.substring(eq + 1);
+    if (known.contains(key))
+    {
+      options.setProperty(key, value);
+    }
+    else
+    {
+      config.setProperty(key, value);
+    }
+  }
+
+  new MrGeoLoadTest(config, options).run();
+}
+
+private MrGeoLoadTest(Properties config, Properties options) throws IOException
+{
+  this.options = options;
+
+  if (options.containsKey("layer"))
+  {
+    layer = options.getProperty("layer");
+  }
+  else
+  {
+    layer = SyntheticPyramid.create(options.getProperty("type"), Integer.parseInt(options.getProperty("bands")),
+        Integer.parseInt(options.getProperty("tilesize")));
+  }
+
+  reader = new MrGeoFormat(config).getReader(new File(config.getProperty(MrGeoFormatFactorySpi.CONFIG_FILE)));
+  if (reader == null)
+  {
+    throw new IOException("Can't create a reader");
+  }
+
+  GeneralEnvelope envelope = reader.getOriginalEnvelope(layer);
+  bounds = new Bounds(envelope.getMinimum(0), envelope.getMinimum(1), envelope.getMaximum(0), envelope.getMaximum(1));
+
+  // zoom levels where the layer covers at least the viewport, down to the native resolution
+  int nativeZoom = MrGeoMetadataCache.getInstance(config).get(layer).getMaxZoomLevel();
+  int viewport = Integer.parseInt(options.getProperty("viewport"));
+  int zoom = nativeZoom;
+  while (zoom > 1 && bounds.width() / (MAP_SIZE * TMSUtils.resolution(zoom - 1, MAP_SIZE)) >= viewport)
+  {
+    zoom--;
+  }
+  minZoom = zoom;
+  maxZoom = nativeZoom;
+
+  recorded = options.containsKey("requests") ? load(new File(options.getProperty("requests"))) : null;
+}
+
+private static List<Request> load(File file) throws IOException
+{
+  List<Request> requests = new ArrayList<>();
+  try (BufferedReader in = new BufferedReader(new FileReader(file)))
+  {
+    String line;
+    while ((line = in.readLine()) != null)
+    {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#"))
+      {
+        continue;
+      }
+
+      String[] f = line.split(",");
+      requests.add(new Request(f[0].trim(), Double.parseDouble(f[1]), Double.parseDouble(f[2]),
+          Double.parseDouble(f[3]), Double.parseDouble(f[4]), Integer.parseInt(f[5].trim()),
+          Integer.parseInt(f[6].trim())));
+    }
+  }
+
+  if (requests.isEmpty())
+  {
+    throw new IOException("No requests in " + file);
+  }
+
+  return requests;
+}
+
+private void run() throws Exception
+{
+  int threads = Integer.parseInt(options.getProperty("threads"));
+  long warmup = Long.parseLong(options.getProperty("warmup")) * 1000;
+  long duration = Long.parseLong(options.getProperty("duration")) * 1000;
+
+  System.out.println("Layer: " + layer + " zoom " + minZoom + " - " + maxZoom + ", " + threads + " threads" +
+      (recorded == null ? ", simulated users" : ", " + recorded.size() + " recorded requests"));
+
+  listenForGc();
+
+  final Result[] results = new Result[threads];
+  final CountDownLatch done = new CountDownLatch(threads);
+  for (int i = 0; i < threads; i++)
+  {
+    final int id = i;
+    results[i] = new Result();
+
+    Thread thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          work(id, results[id]);
+        }
+        finally
+        {
+          done.countDown();
+        }
+      }
+    }, "load-" + i);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  Thread.sleep(warmup);
+
+  ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+  Map<Long, Long> before = allocatedBytes(threadBean);
+  long start = System.nanoTime();
+  measuring = true;
+
+  Thread.sleep(duration);
+
+  measuring = false;
+  long elapsed = System.nanoTime() - start;
+  long allocated = allocatedSince(before, allocatedBytes(threadBean));
+
+  running = false;
+  done.await();
+
+  report(results, elapsed, allocated);
+  System.exit(0);
+}
+
+private void work(int id, Result result)
+{
+  Random random = new Random(id);
+  Session session = new Session(random);
+
+  int next = recorded == null ? 0 : random.nextInt(recorded.size());
+  while (running)
+  {
+    Request request = recorded == null ? session.next() : recorded.get(next++ % recorded.size());
+
+    long start = System.nanoTime();
+    try
+    {
+      GridCoverage2D coverage = reader.read(request.layer, request.parameters);
+
+      // tiled coverages only read their tiles when the pixels are asked for
+      coverage.getRenderedImage().getData();
+      coverage.dispose(true);
+    }
+    catch (Exception e)
+    {
+      if (errors.incrementAndGet() == 1)
+      {
+        e.printStackTrace();
+      }
+    }
+    long nanos = System.nanoTime() - start;
+
+    if (measuring)
+    {
+      result.record(nanos, request.pixels);
+    }
+  }
+}
+
+/**
+ * A simulated map user:  looks at a viewport of map tiles, mostly panning by a tile, sometimes
+ * zooming in or out around the center, occasionally jumping somewhere else.  Each map tile is a
+ * separate read, like a tiled WMS client.
+ */
+private class Session
+{
+  final Random random;
+  final int viewport = Integer.parseInt(options.getProperty("viewport"));
+
+  int zoom;
+  long cx;  // viewport center, in map tiles from the image's upper left
+  long cy;
+
+  int tile = 0;
+
+  Session(Random random)
+  {
+    this.random = random;
+    jump();
+  }
+
+  void jump()
+  {
+    zoom = minZoom + random.nextInt(maxZoom - minZoom + 1);
+    cx = (long) (random.nextDouble() * tiles(bounds.width()));
+    cy = (long) (random.nextDouble() * tiles(bounds.height()));
+  }
+
+  double span()
+  {
+    return MAP_SIZE * TMSUtils.resolution(zoom, MAP_SIZE);
+  }
+
+  long tiles(double degrees)
+  {
+    return Math.max(1, (long) Math.ceil(degrees / span()));
+  }
+
+  Request next()
+  {
+    if (tile == viewport * viewport)
+    {
+      move();
+      tile = 0;
+    }
+
+    long tx = cx - viewport / 2 + tile % viewport;
+    long ty = cy - viewport / 2 + tile / viewport;
+    tile++;
+
+    double span = span();
+    double w = bounds.w + tx * span;
+    double n = bounds.n - ty * span;
+
+    return new Request(layer, w, n - span, w + span, n, MAP_SIZE, MAP_SIZE);
+  }
+
+  void move()
+  {
+    double r = random.nextDouble();
+    if (r < 0.7)
+    {
+      cx += random.nextInt(3) - 1;
+      cy += random.nextInt(3) - 1;
+    }
+    else if (r < 0.8 && zoom < maxZoom)
+    {
+      zoom++;
+      cx = cx * 2;
+      cy = cy * 2;
+    }
+    else if (r < 0.9 && zoom > minZoom)
+    {
+      zoom--;
+      cx = cx / 2;
+      cy = cy / 2;
+    }
+    else if (r > 0.98)
+    {
+      jump();
+    }
+
+    cx = Math.max(0, Math.min(tiles(bounds.width()) - 1, cx));
+    cy = Math.max(0, Math.min(tiles(bounds.height()) - 1, cy));
+  }
+}
+
+// Bytes allocated so far by each live thread (the reader's I/O threads allocate too), by thread
+// id, or null if the JVM can't measure it
+private static Map<Long, Long> allocatedBytes(ThreadMXBean bean)
+{
+  if (!(bean instanceof com.sun.management.ThreadMXBean))
+  {
+    return null;
+  }
+
+  com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+  if (!sun.isThreadAllocatedMemorySupported())
+  {
+    return null;
+  }
+  if (!sun.isThreadAllocatedMemoryEnabled())
+  {
+    sun.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  long[] ids = bean.getAllThreadIds();
+  long[] bytes = sun.getThreadAllocatedBytes(ids);
+
+  Map<Long, Long> allocated = new HashMap<>();
+  for (int i = 0; i < ids.length; i++)
+  {
+    // -1 for a thread that's gone
+    if (bytes[i] >= 0)
+    {
+      allocated.put(ids[i], bytes[i]);
+    }
+  }
+
+  return allocated;
+}
+
+// Bytes allocated between two snapshots, or -1 if they can't be measured.  Threads started in
+// between count from 0.  Threads that ended in between (i.e. idle pool threads timing out) are
+// lost, so this is a lower bound.
+private static long allocatedSince(Map<Long, Long> before, Map<Long, Long> after)
+{
+  if (before == null || after == null)
+  {
+    return -1;
+  }
+
+  long total = 0;
+  for (Map.Entry<Long, Long> entry : after.entrySet())
+  {
+    Long start = before.get(entry.getKey());
+    total += entry.getValue() - (start == null ? 0 : start);
+  }
+
+  return total;
+}
+
+private void listenForGc()
+{
+  for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+  {
+    if (gc instanceof NotificationEmitter)
+    {
+      ((NotificationEmitter) gc).addNotificationListener(new NotificationListener()
+      {
+        @Override
+        public void handleNotification(Notification notification, Object handback)
+        {
+          if (measuring && notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+          {
+            GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            synchronized (gcPauses)
+            {
+              gcPauses.add(info.getGcInfo().getDuration());
+            }
+          }
+        }
+      }, null, null);
+    }
+  }
+}
+
+private void report(Result[] results, long elapsed, long allocated)
+{
+  int count = 0;
+  long pixels = 0;
+  for (Result result : results)
+  {
+    count += result.count;
+    pixels += result.pixels;
+  }
+
+  long[] latencies = new long[count];
+  int offset = 0;
+  for (Result result : results)
+  {
+    System.arraycopy(result.latencies, 0, latencies, offset, result.count);
+    offset += result.count;
+  }
+  Arrays.sort(latencies);
+
+  double seconds = elapsed / 1e9;
+
+  System.out.println();
+  System.out.println(String.format("Requests:    %d in %.1fs (%d errors)", count, seconds, errors.get()));
+  System.out.println(String.format("Throughput:  %.1f req/s, %.1f Mpixels/s", count / seconds, pixels / seconds / 1e6));
+  if (count > 0)
+  {
+    System.out.println(String.format("Latency:     p50 %.2fms  p99 %.2fms  p99.9 %.2fms  max %.2fms",
+        percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+        latencies[count - 1] / 1e6));
+  }
+  if (allocated >= 0)
+  {
+    System.out.println(String.format("Allocation:  %.1f MB/s", allocated / seconds / (1024 * 1024)));
+  }
+  else
+  {
+    System.out.println("Allocation:  n/a (per thread allocation isn't supported by this JVM)");
+  }
+
+  synchronized (gcPauses)
+  {
+    long total = 0;
+    long max = 0;
+    for (long pause : gcPauses)
+    {
+      total += pause;
+      max = Math.max(max, pause);
+    }
+    System.out.println(String.format("GC:          %d collections, %dms total, %dms max", gcPauses.size(), total, max));
+  }
+}
+
+// in ms
+private static double percentile(long[] sorted, double p)
+{
+  int ndx = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+  return sorted[Math.max(0, ndx)] / 1e6;
+}
+
+}
@@ -0,0 +1,136 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.data.raster.RasterUtils;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The crop step on its own, with the tiles already in memory:  building a cropped output image from
+ * a 3 x 3 block of tiles, the way the reader does it now (copying each tile's overlap straight into
+ * the output), and the way it used to (merge into one raster, clip, then makeBufferedImage).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MrGeoRasterCopierBenchmark
+{
+private final static int TILES = 3;
+
+@Param({"byte", "short", "float"})
+public String type;
+
+@Param({"1", "3"})
+public int bands;
+
+@Param({"256", "512"})
+public int tilesize;
+
+private MrGeoRaster[] tiles;
+private MrGeoRaster merged;
+private MrsPyramidMetadata meta;
+
+// the crop:  most of the middle tile, and some of each neighbor
+private int cropX;
+private int cropY;
+private int cropW;
+private int cropH;
+
+@Setup(Level.Trial)
+public void setup()
+{
+  int datatype = SyntheticPyramid.dataType(type);
+
+  meta = new MrsPyramidMetadata();
+  meta.setTilesize(tilesize);
+  meta.setBands(bands);
+  meta.setTileType(datatype);
+
+  tiles = new MrGeoRaster[TILES * TILES];
+  for (int i = 0; i < tiles.length; i++)
+  {
+    tiles[i] = MrGeoRaster.createEmptyRaster(tilesize, tilesize, bands, datatype);
+    tiles[i].fill(i);
+  }
+
+  merged = MrGeoRaster.createEmptyRaster(tilesize * TILES, tilesize * TILES, bands, datatype);
+  for (int i = 0; i < tiles.length; i++)
+  {
+    merged.copyFrom(0, 0, tilesize, tilesize, tiles[i], (i % TILES) * tilesize, (i / TILES) * tilesize);
+  }
+
+  cropX = tilesize / 3;
+  cropY = tilesize / 4;
+  cropW = tilesize * 2;
+  cropH = tilesize * 2;
+}
+
+@Benchmark
+public BufferedImage copy()
+{
+  WritableRaster raster = Raster.createWritableRaster(
+      MrGeoTiledImage.createSampleModel(meta).createCompatibleSampleModel(cropW, cropH), null);
+
+  for (int i = 0; i < tiles.length; i++)
+  {
+    int x0 = (i % TILES) * tilesize;
+    int y0 = (i / TILES) * tilesize;
+
+    int x1 = Math.max(x0, cropX);
+    int y1 = Math.max(y0, cropY);
+    int x2 = Math.min(x0 + tilesize, cropX + cropW);
+    int y2 = Math.min(y0 + tilesize, cropY + cropH);
+
+    if (x1 < x2 && y1 < y2)
+    {
+      MrGeoRasterCopier.copy(tiles[i], x1 - x0, y1 - y0, x2 - x1, y2 - y1, raster, x1 - cropX, y1 - cropY);
+    }
+  }
+
+  return new BufferedImage(MrGeoTiledImage.createColorModel(raster.getSampleModel()), raster, false, null);
+}
+
+@Benchmark
+public BufferedImage clipAndMakeBufferedImage()
+{
+  MrGeoRaster cropped = merged.clip(cropX, cropY, cropW, cropH);
+  return RasterUtils.makeBufferedImage(cropped.toRaster());
+}
+
+}
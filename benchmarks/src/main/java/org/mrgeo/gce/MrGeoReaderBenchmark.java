@@ -0,0 +1,150 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.OverviewPolicy;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MrGeoReader hot paths against a synthetic local pyramid:  a 256 x 256 GetMap style read at
+ * different zoom levels (panning over the image, like a map client), plus the per-request metadata
+ * calls GeoServer makes before reading.  Each parameter combination runs in its own fork, so the
+ * process-wide caches are configured (and start empty) per combination.
+ * <p>
+ * By default only the tile type, band count and tile cache vary (12 forks).  Tile size and zoom
+ * level are fixed, other values can be given on the command line, i.e. -p tilesize=256,512
+ * -p zoom=5,7,9.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MrGeoReaderBenchmark
+{
+private final static int MAP_SIZE = 256;
+private final static int ENVELOPES = 64;
+
+@Param({"byte", "short", "float"})
+public String type;
+
+@Param({"1", "3"})
+public int bands;
+
+@Param({"512"})
+public int tilesize;
+
+@Param({"9"})
+public int zoom;
+
+// 0 turns off the tile cache, so every read goes to storage
+@Param({"0", "256"})
+public String tileCache;
+
+private MrGeoReader reader;
+private String name;
+private GeneralParameterValue[][] requests;
+private int next = 0;
+
+@Setup(Level.Trial)
+public void setup() throws IOException
+{
+  Properties config = SyntheticPyramid.setup();
+  config.setProperty("tile.cache.size", tileCache);
+
+  name = SyntheticPyramid.create(type, bands, tilesize);
+  reader = new MrGeoReader(config);
+
+  requests = new GeneralParameterValue[ENVELOPES][];
+  Random random = new Random(1234);
+
+  // map tiles (always 256 pixels, like a web map client) at this zoom, inside the image
+  double span = MAP_SIZE * TMSUtils.resolution(zoom, MAP_SIZE);
+  Bounds bounds = SyntheticPyramid.BOUNDS;
+  for (int i = 0; i < ENVELOPES; i++)
+  {
+    double w = bounds.w + random.nextDouble() * Math.max(0, bounds.width() - span);
+    double s = bounds.s + random.nextDouble() * Math.max(0, bounds.height() - span);
+    w = Math.floor(w / span) * span;
+    s = Math.floor(s / span) * span;
+
+    requests[i] = request(w, s, w + span, s + span, MAP_SIZE, MAP_SIZE);
+  }
+}
+
+static GeneralParameterValue[] request(double w, double s, double e, double n, int width, int height)
+{
+  ReferencedEnvelope envelope = new ReferencedEnvelope(w, e, s, n, MrGeoReader.getEpsg4326());
+
+  ParameterValue<GridGeometry2D> gg = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+  gg.setValue(new GridGeometry2D(new GridEnvelope2D(new Rectangle(0, 0, width, height)), envelope));
+
+  return new GeneralParameterValue[]{gg};
+}
+
+@Benchmark
+public void read(Blackhole bh) throws IOException
+{
+  GridCoverage2D coverage = reader.read(name, requests[next++ % ENVELOPES]);
+
+  // tiled coverages only read their tiles when the pixels are asked for
+  bh.consume(coverage.getRenderedImage().getData());
+}
+
+@Benchmark
+public double[] getReadingResolutions() throws IOException
+{
+  double res = TMSUtils.resolution(zoom, tilesize);
+  return reader.getReadingResolutions(name, OverviewPolicy.QUALITY, new double[]{res, res});
+}
+
+@Benchmark
+public Object getImageLayout() throws IOException
+{
+  return reader.getImageLayout(name);
+}
+
+}
@@ -0,0 +1,182 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.mrgeo.core.MrGeoConstants;
+import org.mrgeo.core.MrGeoProperties;
+import org.mrgeo.data.DataProviderFactory;
+import org.mrgeo.data.ProviderProperties;
+import org.mrgeo.data.image.MrsImageDataProvider;
+import org.mrgeo.data.image.MrsImageWriter;
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.data.tile.TileIdWritable;
+import org.mrgeo.hdfs.utils.HadoopFileUtils;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.utils.LongRectangle;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.Pixel;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.mrgeo.utils.tms.TileBounds;
+
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Writes small synthetic MrGeo pyramids (all zoom levels, a simple gradient in every band) to the
+ * local filesystem, so the benchmarks don't need a cluster or real data.  Pyramids are left in
+ * place and reused by later runs (and forks) with the same parameters.
+ */
+class SyntheticPyramid
+{
+// 5 x 5 degrees, a few dozen tiles at the max zoom
+final static Bounds BOUNDS = new Bounds(10.0, 10.0, 15.0, 15.0);
+final static int MAX_ZOOM = 9;
+
+private SyntheticPyramid()
+{
+}
+
+/**
+ * Point MrGeo at the benchmark image directory (-Dmrgeo.bench.dir, default in java.io.tmpdir), and
+ * return a config for the readers.
+ */
+static Properties setup()
+{
+  File dir = new File(System.getProperty("mrgeo.bench.dir", new File(System.getProperty("java.io.tmpdir"), "mrgeo-bench").getPath()));
+  MrGeoProperties.getInstance().setProperty(MrGeoConstants.MRGEO_HDFS_IMAGE, dir.toURI().toString());
+
+  Properties config = new Properties();
+  config.setProperty(MrGeoFormatFactorySpi.CONFIG_FILE, "benchmark");
+  config.setProperty("metrics.jmx", "false");
+
+  return config;
+}
+
+static String name(String type, int bands, int tilesize)
+{
+  return "bench-" + type + "-" + bands + "b-" + tilesize;
+}
+
+static int dataType(String type)
+{
+  switch (type)
+  {
+  case "byte":
+    return DataBuffer.TYPE_BYTE;
+  case "short":
+    return DataBuffer.TYPE_SHORT;
+  case "int":
+    return DataBuffer.TYPE_INT;
+  case "float":
+    return DataBuffer.TYPE_FLOAT;
+  case "double":
+    return DataBuffer.TYPE_DOUBLE;
+  default:
+    throw new IllegalArgumentException("Unknown tile type: " + type);
+  }
+}
+
+/**
+ * Write the pyramid, unless it's already there
+ */
+static String create(String type, int bands, int tilesize) throws IOException
+{
+  String name = name(type, bands, tilesize);
+
+  Path metadata = new Path(new Path(MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_HDFS_IMAGE), name), "metadata");
+  FileSystem fs = HadoopFileUtils.getFileSystem(metadata);
+  if (fs.exists(metadata))
+  {
+    return name;
+  }
+
+  int datatype = dataType(type);
+
+  MrsImageDataProvider dp = DataProviderFactory.getMrsImageDataProvider(name, DataProviderFactory.AccessMode.OVERWRITE,
+      new ProviderProperties("", ""));
+
+  double[] nodata = new double[bands];
+  Arrays.fill(nodata, datatype == DataBuffer.TYPE_FLOAT || datatype == DataBuffer.TYPE_DOUBLE ? Double.NaN : 0);
+
+  MrsPyramidMetadata meta = new MrsPyramidMetadata();
+  meta.setPyramid(name);
+  meta.setBounds(BOUNDS);
+  meta.setTilesize(tilesize);
+  meta.setBands(bands);
+  meta.setTileType(datatype);
+  meta.setMaxZoomLevel(MAX_ZOOM);
+  meta.setDefaultValues(nodata);
+  meta.setProtectionLevel("");
+
+  for (int zoom = 1; zoom <= MAX_ZOOM; zoom++)
+  {
+    TileBounds tb = TMSUtils.boundsToTile(BOUNDS, zoom, tilesize);
+
+    Pixel ul = TMSUtils.latLonToPixelsUL(BOUNDS.n, BOUNDS.w, zoom, tilesize);
+    Pixel lr = TMSUtils.latLonToPixelsUL(BOUNDS.s, BOUNDS.e, zoom, tilesize);
+
+    meta.setName(zoom);
+    meta.setTileBounds(zoom, new LongRectangle(tb.w, tb.s, tb.e, tb.n));
+    meta.setPixelBounds(zoom, new LongRectangle(0, 0, lr.px - ul.px, lr.py - ul.py));
+
+    MrsImageWriter writer = dp.getMrsTileWriter(zoom, "");
+    try
+    {
+      // tiles must be written in tile id order
+      for (long ty = tb.s; ty <= tb.n; ty++)
+      {
+        for (long tx = tb.w; tx <= tb.e; tx++)
+        {
+          writer.append(new TileIdWritable(TMSUtils.tileid(tx, ty, zoom)), tile(datatype, bands, tilesize, tx, ty));
+        }
+      }
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  dp.getMetadataWriter().write(meta);
+
+  return name;
+}
+
+private static MrGeoRaster tile(int datatype, int bands, int tilesize, long tx, long ty)
+{
+  MrGeoRaster raster = MrGeoRaster.createEmptyRaster(tilesize, tilesize, bands, datatype);
+  for (int b = 0; b < bands; b++)
+  {
+    for (int y = 0; y < tilesize; y++)
+    {
+      for (int x = 0; x < tilesize; x++)
+      {
+        raster.setPixel(x, y, b, (double) ((x + y + tx + ty + b * 37) % 200));
+      }
+    }
+  }
+
+  return raster;
+}
+
+}
@@ -0,0 +1,225 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.geotools.util.logging.Logging;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.mrgeo.utils.tms.TileBounds;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads the tiles of new (or rebuilt) layers into the tile cache in the background, on low
+ * priority threads, so the first users to look at new data don't pay for every tile coming from
+ * storage.  By default the lowest zoom levels (the first views of a layer) are loaded, whole levels
+ * at a time, until the tile budget runs out.  The zoom levels and area can also be configured.
+ *
+ * The tiles are read on the warm-up's own threads, outside the fetcher's I/O pool, so before each
+ * tile the warm-up checks the fetcher and pauses while it's busy; user requests come first.  Unlike a prefetch, a warm-up only
+ * happens once, so it waits rather than giving up.
+ */
+class MrGeoCacheWarmer
+{
+private final static String WARMUP_ENABLE = "warmup.enable";
+private final static String WARMUP_TILES = "warmup.tiles";
+private final static String WARMUP_TILES_DEFAULT = "256";
+private final static String WARMUP_ZOOM = "warmup.zoom";  // min-max, i.e. 1-8
+private final static String WARMUP_BOUNDS = "warmup.bounds";  // w,s,e,n
+private final static String WARMUP_THREADS = "warmup.threads";
+private final static String WARMUP_THREADS_DEFAULT = "2";
+
+private final static long PAUSE_MILLIS = 250;  // how long a warm-up waits for the fetcher to be free
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoCacheWarmer");
+
+private static MrGeoCacheWarmer instance = null;
+
+private final boolean enabled;
+private final long budget;
+private final int minZoom;
+private final int maxZoom;
+private final Bounds bounds;
+
+private final ThreadPoolExecutor executor;
+
+private final MrGeoMetadataCache metadataCache;
+private final MrGeoTileFetcher fetcher;
+private final MrGeoTileCache tiles;
+
+static synchronized MrGeoCacheWarmer getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoCacheWarmer(config);
+  }
+
+  return instance;
+}
+
+private MrGeoCacheWarmer(Properties config)
+{
+  metadataCache = MrGeoMetadataCache.getInstance(config);
+  fetcher = MrGeoTileFetcher.getInstance(config);
+  tiles = MrGeoTileCache.getInstance(config);
+
+  // nothing to warm without a cache
+  enabled = Boolean.parseBoolean(config.getProperty(WARMUP_ENABLE, "false")) && tiles.isEnabled();
+  budget = Long.parseLong(config.getProperty(WARMUP_TILES, WARMUP_TILES_DEFAULT));
+
+  String zoom = config.getProperty(WARMUP_ZOOM);
+  if (zoom != null)
+  {
+    String[] range = zoom.split("-");
+    minZoom = Integer.parseInt(range[0].trim());
+    maxZoom = Integer.parseInt(range[range.length - 1].trim());
+  }
+  else
+  {
+    minZoom = 1;
+    maxZoom = Integer.MAX_VALUE;
+  }
+
+  String area = config.getProperty(WARMUP_BOUNDS);
+  if (area != null)
+  {
+    String[] wsen = area.split(",");
+    bounds = new Bounds(Double.parseDouble(wsen[0]), Double.parseDouble(wsen[1]),
+        Double.parseDouble(wsen[2]), Double.parseDouble(wsen[3]));
+  }
+  else
+  {
+    bounds = null;
+  }
+
+  int threads = Math.max(1, Integer.parseInt(config.getProperty(WARMUP_THREADS, WARMUP_THREADS_DEFAULT)));
+  executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+      new MrGeoThreadFactory("mrgeo-warmup", Thread.MIN_PRIORITY));
+  executor.allowCoreThreadTimeOut(true);
+
+  if (enabled)
+  {
+    log.info("Cache warm-up: tiles: " + budget + " zoom: " + (zoom == null ? "lowest" : zoom) +
+        (area == null ? "" : " bounds: " + area));
+  }
+}
+
+/**
+ * Queue a layer to be warmed.  Returns right away.
+ */
+void warm(final String layer)
+{
+  if (!enabled)
+  {
+    return;
+  }
+
+  executor.execute(new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      try
+      {
+        long start = System.currentTimeMillis();
+        long count = load(layer);
+        log.fine("Warmed " + layer + ": " + count + " tiles in " + (System.currentTimeMillis() - start) + "ms");
+      }
+      catch (Exception e)
+      {
+        // only costs the first user a bit of time
+        log.log(Level.FINE, "Error warming " + layer, e);
+      }
+    }
+  });
+}
+
+private long load(String layer) throws IOException
+{
+  MrsPyramidMetadata meta = metadataCache.get(layer);
+  int tilesize = meta.getTilesize();
+
+  Bounds area = meta.getBounds();
+  if (bounds != null)
+  {
+    area = new Bounds(Math.max(area.w, bounds.w), Math.max(area.s, bounds.s),
+        Math.min(area.e, bounds.e), Math.min(area.n, bounds.n));
+    if (area.w >= area.e || area.s >= area.n)
+    {
+      return 0;
+    }
+  }
+
+  // without pyramids, only the max zoom exists
+  int first = meta.hasPyramids() ? Math.max(1, minZoom) : meta.getMaxZoomLevel();
+  int last = Math.min(maxZoom, meta.getMaxZoomLevel());
+
+  long count = 0;
+  for (int zoom = first; zoom <= last; zoom++)
+  {
+    TileBounds tb = TMSUtils.boundsToTile(area, zoom, tilesize);
+
+    // whole levels only, a partly warmed level doesn't help much
+    long level = (tb.e - tb.w + 1) * (tb.n - tb.s + 1);
+    if (count + level > budget)
+    {
+      break;
+    }
+
+    // through the fetcher, so the tile index learns the level too
+    for (long ty = tb.n; ty >= tb.s; ty--)
+    {
+      for (long tx = tb.w; tx <= tb.e; tx++)
+      {
+        pause();
+        fetcher.get(layer, zoom, tx, ty);
+      }
+    }
+
+    count += level;
+  }
+
+  return count;
+}
+
+// back off while user requests are using the fetcher
+private void pause() throws IOException
+{
+  try
+  {
+    while (fetcher.isBusy())
+    {
+      Thread.sleep(PAUSE_MILLIS);
+    }
+  }
+  catch (InterruptedException e)
+  {
+    Thread.currentThread().interrupt();
+    throw new InterruptedIOException("Interrupted while warming the tile cache");
+  }
+}
+
+}
@@ -0,0 +1,554 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.geotools.util.logging.Logging;
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.data.raster.RasterWritable;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.mrgeo.utils.tms.TileBounds;
+
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes the lower resolution levels of pyramids that don't have any (no overviews were built), as
+ * they're read, instead of reading the full resolution image for a zoomed out view.  A decimated
+ * tile at zoom z is reduced from the block of (2^(max - z))^2 full resolution tiles under it, read
+ * in bounded batches, either by nearest neighbor (only the tiles holding a sampled pixel are read)
+ * or by averaging (every tile is read, nodata is skipped).
+ *
+ * Decimated tiles go through the tile cache like any other tile, and can also be kept in a local
+ * overview directory, so a zoomed out view only costs the decimation once per pyramid version.
+ * <p>
+ * The full resolution reads go through the fetcher's per-request limit, and only a few tiles are
+ * decimated at once (however many threads want them), so decimation can't take over the I/O pool.
+ * That also bounds decimation's memory:  each one only holds the output tile, the full resolution
+ * tiles in flight and (when averaging) the sums.  It isn't taken from the read budget, as the
+ * read asking for the tile already holds its own share of it, and waiting on the budget again
+ * could leave every read holding memory while waiting for more.
+ */
+class MrGeoDecimator implements MrGeoMetadataCache.Listener
+{
+private final static String DECIMATE_ENABLE = "decimate.enable";
+private final static String DECIMATE_LEVELS = "decimate.levels";
+private final static String DECIMATE_LEVELS_DEFAULT = "8";
+private final static String DECIMATE_METHOD = "decimate.method";
+private final static String DECIMATE_METHOD_DEFAULT = "nearest";
+private final static String DECIMATE_BATCH = "decimate.batch";
+private final static String DECIMATE_BATCH_DEFAULT = "256";  // tiles
+private final static String DECIMATE_AVERAGE_TILES = "decimate.average.tiles";
+private final static String DECIMATE_AVERAGE_TILES_DEFAULT = "1024";
+private final static String DECIMATE_CACHE_DIR = "decimate.cache.dir";
+private final static String DECIMATE_CONCURRENT = "decimate.concurrent";
+private final static String DECIMATE_CONCURRENT_DEFAULT = "2";
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoDecimator");
+
+private static MrGeoDecimator instance = null;
+
+private final boolean enabled;
+private final int levels;
+private final boolean average;
+private final int batch;
+private final int averageTiles;
+private final File overviews;
+// decimations running at once
+private final Semaphore running;
+
+private final MrGeoMetadataCache metadata;
+private final MrGeoTileCache tiles;
+
+// metadata stamp of each layer's overview directory
+private final ConcurrentMap<String, Long> stamps = new ConcurrentHashMap<>();
+
+static synchronized MrGeoDecimator getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoDecimator(config);
+  }
+
+  return instance;
+}
+
+private MrGeoDecimator(Properties config)
+{
+  enabled = Boolean.parseBoolean(config.getProperty(DECIMATE_ENABLE, "false"));
+  levels = Math.max(1, Integer.parseInt(config.getProperty(DECIMATE_LEVELS, DECIMATE_LEVELS_DEFAULT)));
+  batch = Math.max(1, Integer.parseInt(config.getProperty(DECIMATE_BATCH, DECIMATE_BATCH_DEFAULT)));
+  averageTiles = Integer.parseInt(config.getProperty(DECIMATE_AVERAGE_TILES, DECIMATE_AVERAGE_TILES_DEFAULT));
+
+  String method = config.getProperty(DECIMATE_METHOD, DECIMATE_METHOD_DEFAULT);
+  if (!method.equalsIgnoreCase("nearest") && !method.equalsIgnoreCase("average"))
+  {
+    log.warning("Unknown decimation method: " + method + ", using nearest");
+  }
+  average = method.equalsIgnoreCase("average");
+
+  String dir = config.getProperty(DECIMATE_CACHE_DIR, "");
+  overviews = dir.isEmpty() ? null : new File(dir);
+
+  running = new Semaphore(Math.max(1, Integer.parseInt(config.getProperty(DECIMATE_CONCURRENT,
+      DECIMATE_CONCURRENT_DEFAULT))), true);
+
+  metadata = MrGeoMetadataCache.getInstance(config);
+  tiles = MrGeoTileCache.getInstance(config);
+
+  if (enabled)
+  {
+    log.info("Decimation: levels: " + levels + " method: " + (average ? "average" : "nearest") +
+        " batch: " + batch + (overviews == null ? "" : " overviews: " + overviews));
+
+    metadata.addListener(this);
+  }
+}
+
+boolean isEnabled()
+{
+  return enabled;
+}
+
+/**
+ * The lowest zoom level a read of a pyramid without overviews can use
+ */
+int getMinZoom(MrsPyramidMetadata meta)
+{
+  return Math.max(1, meta.getMaxZoomLevel() - levels);
+}
+
+/**
+ * True if tiles of the layer at the zoom level have to be made by decimation
+ */
+boolean isDecimated(String layer, int zoom) throws IOException
+{
+  if (!enabled)
+  {
+    return false;
+  }
+
+  MrsPyramidMetadata meta = metadata.get(layer);
+  return !meta.hasPyramids() && zoom < meta.getMaxZoomLevel();
+}
+
+/**
+ * The number of full resolution tiles a read of the tiles in tb at a decimated zoom level pulls
+ * from storage, at most.  Tiles already decimated (in the tile cache or the overview directory)
+ * count as one tile, so the read limits apply to the data actually read.
+ */
+long getSourceTiles(String layer, MrsPyramidMetadata meta, int zoom, TileBounds tb)
+{
+  int factor = 1 << (meta.getMaxZoomLevel() - zoom);
+  int sampled = Math.min(factor, meta.getTilesize());
+
+  long block = average && (long) factor * factor <= averageTiles ? (long) factor * factor : (long) sampled * sampled;
+
+  long total = 0;
+  for (long ty = tb.s; ty <= tb.n; ty++)
+  {
+    for (long tx = tb.w; tx <= tb.e; tx++)
+    {
+      File file = overviewFile(layer, zoom, tx, ty);
+      if (tiles.contains(layer, zoom, tx, ty) || (file != null && file.exists()))
+      {
+        total++;
+      }
+      else
+      {
+        total += block;
+      }
+    }
+  }
+
+  return total;
+}
+
+/**
+ * Get a decimated tile, making it if it isn't in the tile cache or the overview directory.  The
+ * full resolution tiles are read with the fetcher, so this must not be called on an I/O thread.
+ *
+ * @return the tile, or null if there is no data under it
+ */
+MrGeoRaster get(final String layer, final int zoom, final long tx, final long ty, final MrGeoTileFetcher fetcher)
+    throws IOException
+{
+  return tiles.get(layer, zoom, tx, ty, new MrGeoTileCache.Loader()
+  {
+    @Override
+    public MrGeoRaster load() throws IOException
+    {
+      MrsPyramidMetadata meta = metadata.get(layer);
+
+      File file = overviewFile(layer, zoom, tx, ty);
+      if (file != null && file.exists())
+      {
+        return readOverview(file);
+      }
+
+      long start = System.currentTimeMillis();
+      MrGeoRaster tile;
+
+      acquire(layer);
+      try
+      {
+        tile = decimate(layer, meta, zoom, tx, ty, fetcher);
+      }
+      finally
+      {
+        running.release();
+      }
+
+      if (log.isLoggable(Level.FINE))
+      {
+        log.fine("Decimated " + layer + " (" + zoom + ": " + tx + ", " + ty + ") in " +
+            (System.currentTimeMillis() - start) + "ms");
+      }
+
+      if (file != null)
+      {
+        writeOverview(file, tile);
+      }
+
+      return tile;
+    }
+  });
+}
+
+private void acquire(String layer) throws IOException
+{
+  try
+  {
+    running.acquire();
+  }
+  catch (InterruptedException e)
+  {
+    Thread.currentThread().interrupt();
+    throw new InterruptedIOException("Interrupted while waiting to decimate " + layer);
+  }
+}
+
+@Override
+public void metadataChanged(String name)
+{
+  // the pyramid was rebuilt, its overviews are stale
+  stamps.remove(name);
+  if (overviews != null)
+  {
+    delete(new File(overviews, name));
+  }
+}
+
+private MrGeoRaster decimate(String layer, MrsPyramidMetadata meta, int zoom, long tx, long ty,
+    MrGeoTileFetcher fetcher) throws IOException
+{
+  final int base = meta.getMaxZoomLevel();
+  final int tilesize = meta.getTilesize();
+  final int bands = meta.getBands();
+  final int factor = 1 << (base - zoom);
+  final double[] nodata = meta.getDefaultValues();
+
+  // the block of full resolution tiles under this one, (w, n) is the upper-left
+  final long w = tx * factor;
+  final long n = ty * factor + factor - 1;
+
+  TileBounds valid = TMSUtils.boundsToTile(meta.getBounds(), base, tilesize);
+
+  // output pixel -> (tile offset, pixel) within the block, sampling the middle of each output pixel
+  final int[] blockTile = new int[tilesize];
+  final int[] blockPixel = new int[tilesize];
+  for (int i = 0; i < tilesize; i++)
+  {
+    long p = (long) i * factor + factor / 2;
+    blockTile[i] = (int) (p / tilesize);
+    blockPixel[i] = (int) (p % tilesize);
+  }
+
+  final boolean averaging = average && (long) factor * factor <= averageTiles;
+
+  List<long[]> ids = new ArrayList<>();
+  for (int ry = 0; ry < factor; ry++)
+  {
+    // nearest neighbor only needs the tiles with a sampled pixel in them
+    if (!averaging && !sampled(blockTile, ry))
+    {
+      continue;
+    }
+
+    long by = n - ry;
+    for (int cx = 0; cx < factor; cx++)
+    {
+      long bx = w + cx;
+      if ((averaging || sampled(blockTile, cx)) && bx >= valid.w && bx <= valid.e && by >= valid.s && by <= valid.n)
+      {
+        ids.add(new long[]{bx, by});
+      }
+    }
+  }
+
+  if (ids.isEmpty())
+  {
+    return null;
+  }
+
+  final MrGeoRaster tile = MrGeoRaster.createEmptyRaster(tilesize, tilesize, bands, meta.getTileType());
+  for (int b = 0; b < bands; b++)
+  {
+    for (int y = 0; y < tilesize; y++)
+    {
+      for (int x = 0; x < tilesize; x++)
+      {
+        tile.setPixel(x, y, b, nodata[b]);
+      }
+    }
+  }
+
+  final double[][] sums = averaging ? new double[bands][tilesize * tilesize] : null;
+  final int[][] counts = averaging ? new int[bands][tilesize * tilesize] : null;
+  final boolean[] found = {false};
+
+  MrGeoTileFetcher.TileHandler handler = new MrGeoTileFetcher.TileHandler()
+  {
+    @Override
+    public void tile(long bx, long by, MrGeoRaster raster)
+    {
+      if (raster == null)
+      {
+        return;
+      }
+      found[0] = true;
+
+      int cx = (int) (bx - w);
+      int ry = (int) (n - by);
+
+      if (averaging)
+      {
+        accumulate(raster, cx, ry, factor, tilesize, nodata, sums, counts);
+      }
+      else
+      {
+        int i0 = lowerBound(blockTile, cx);
+        int i1 = lowerBound(blockTile, cx + 1);
+        int j0 = lowerBound(blockTile, ry);
+        int j1 = lowerBound(blockTile, ry + 1);
+
+        for (int b = 0; b < bands; b++)
+        {
+          for (int j = j0; j < j1; j++)
+          {
+            for (int i = i0; i < i1; i++)
+            {
+              tile.setPixel(i, j, b, raster.getPixelDouble(blockPixel[i], blockPixel[j], b));
+            }
+          }
+        }
+      }
+    }
+  };
+
+  // in batches, so a big block doesn't queue up thousands of reads at once
+  for (int i = 0; i < ids.size(); i += batch)
+  {
+    fetcher.fetch(layer, base, ids.subList(i, Math.min(ids.size(), i + batch)), handler);
+  }
+
+  if (!found[0])
+  {
+    return null;
+  }
+
+  if (averaging)
+  {
+    int type = meta.getTileType();
+    boolean integral = type != DataBuffer.TYPE_FLOAT && type != DataBuffer.TYPE_DOUBLE;
+
+    for (int b = 0; b < bands; b++)
+    {
+      for (int ndx = 0; ndx < sums[b].length; ndx++)
+      {
+        if (counts[b][ndx] > 0)
+        {
+          double value = sums[b][ndx] / counts[b][ndx];
+          tile.setPixel(ndx % tilesize, ndx / tilesize, b, integral ? Math.rint(value) : value);
+        }
+      }
+    }
+  }
+
+  return tile;
+}
+
+// Add a full resolution tile (at column cx, row ry of the block) to the output pixel sums
+private static void accumulate(MrGeoRaster raster, int cx, int ry, int factor, int tilesize, double[] nodata,
+    double[][] sums, int[][] counts)
+{
+  for (int b = 0; b < nodata.length; b++)
+  {
+    final double[] sum = sums[b];
+    final int[] count = counts[b];
+    final boolean nan = Double.isNaN(nodata[b]);
+
+    for (int y = 0; y < tilesize; y++)
+    {
+      int row = (int) (((long) ry * tilesize + y) / factor) * tilesize;
+      for (int x = 0; x < tilesize; x++)
+      {
+        double v = raster.getPixelDouble(x, y, b);
+        if (nan ? !Double.isNaN(v) : v != nodata[b])
+        {
+          int ndx = row + (int) (((long) cx * tilesize + x) / factor);
+          sum[ndx] += v;
+          count[ndx]++;
+        }
+      }
+    }
+  }
+}
+
+// true if any output pixel samples the tile at this offset in the block
+private static boolean sampled(int[] blockTile, int offset)
+{
+  int ndx = lowerBound(blockTile, offset);
+  return ndx < blockTile.length && blockTile[ndx] == offset;
+}
+
+// first index in the (sorted) table whose value is >= value
+private static int lowerBound(int[] table, int value)
+{
+  int lo = 0;
+  int hi = table.length;
+  while (lo < hi)
+  {
+    int mid = (lo + hi) >>> 1;
+    if (table[mid] < value)
+    {
+      lo = mid + 1;
+    }
+    else
+    {
+      hi = mid;
+    }
+  }
+
+  return lo;
+}
+
+// The tile's file in the overview directory, or null if tiles aren't kept on disk (or can't be,
+// because the pyramid's version can't be told)
+private File overviewFile(String layer, int zoom, long tx, long ty)
+{
+  if (overviews == null)
+  {
+    return null;
+  }
+
+  Long stamp = stamps.get(layer);
+  if (stamp == null)
+  {
+    stamp = MrGeoMetadataCache.modificationTime(layer);
+    stamps.put(layer, stamp);
+  }
+
+  if (stamp == 0)
+  {
+    return null;
+  }
+
+  return new File(new File(new File(new File(overviews, layer), Long.toString(stamp)), Integer.toString(zoom)),
+      tx + "_" + ty);
+}
+
+// an empty file is a tile with no data under it
+private static MrGeoRaster readOverview(File file) throws IOException
+{
+  byte[] bytes = Files.readAllBytes(file.toPath());
+  if (bytes.length == 0)
+  {
+    return null;
+  }
+
+  return RasterWritable.toMrGeoRaster(new RasterWritable(bytes));
+}
+
+private static void writeOverview(File file, MrGeoRaster tile)
+{
+  File dir = file.getParentFile();
+  File tmp = new File(dir, file.getName() + ".tmp-" + Thread.currentThread().getId());
+  try
+  {
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+    {
+      throw new IOException("Can't create " + dir);
+    }
+
+    try (OutputStream out = new FileOutputStream(tmp))
+    {
+      if (tile != null)
+      {
+        out.write(RasterWritable.toWritable(tile).getBytes());
+      }
+    }
+
+    // readers only ever see a whole tile
+    if (!tmp.renameTo(file))
+    {
+      throw new IOException("Can't rename " + tmp + " to " + file);
+    }
+  }
+  catch (IOException e)
+  {
+    // not fatal, the tile just gets decimated again next time
+    log.warning("Error saving overview tile " + file + ": " + e.getMessage());
+    if (tmp.exists() && !tmp.delete())
+    {
+      log.fine("Can't delete " + tmp);
+    }
+  }
+}
+
+private static void delete(File file)
+{
+  File[] children = file.listFiles();
+  if (children != null)
+  {
+    for (File child : children)
+    {
+      delete(child);
+    }
+  }
+
+  if (file.exists() && !file.delete())
+  {
+    log.warning("Can't delete " + file);
+  }
+}
+
+}
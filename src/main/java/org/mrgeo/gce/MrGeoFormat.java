@@ -63,7 +63,8 @@ public MrGeoFormat(Properties config)
   readParameters = new ParameterGroup(
       new DefaultParameterDescriptorGroup(
           mInfo,
-          new GeneralParameterDescriptor[] { READ_GRIDGEOMETRY2D, INPUT_TRANSPARENT_COLOR, BACKGROUND_COLOR}));
+          new GeneralParameterDescriptor[] { READ_GRIDGEOMETRY2D, INPUT_TRANSPARENT_COLOR, BACKGROUND_COLOR,
+              OVERVIEW_POLICY, BANDS}));
 
 }
 
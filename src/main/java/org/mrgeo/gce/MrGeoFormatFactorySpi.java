@@ -134,9 +134,12 @@ public MrGeoFormatFactorySpi()
 
       config.setProperty(CONFIG_FILE, file.getCanonicalPath());
 
-      if (updater == null)
+      synchronized (MrGeoFormatFactorySpi.class)
       {
-        updater = new MrGeoLayerUpdater(config);
+        if (updater == null)
+        {
+          updater = new MrGeoLayerUpdater(config);
+        }
       }
     }
     else
@@ -166,6 +169,23 @@ public MrGeoFormatFactorySpi()
   }
 }
 
+static synchronized MrGeoLayerUpdater getUpdater()
+{
+  return updater;
+}
+
+// Called when the web application stops
+static synchronized void shutdown()
+{
+  if (updater != null)
+  {
+    updater.shutdown();
+    updater = null;
+  }
+
+  MrGeoLayerRegistry.shutdown();
+}
+
 private static void logstack(Throwable t)
 {
   StackTraceElement[] st = t.getStackTrace();
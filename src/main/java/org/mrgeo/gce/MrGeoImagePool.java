@@ -0,0 +1,235 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.geotools.util.logging.Logging;
+import org.mrgeo.data.DataProviderFactory;
+import org.mrgeo.data.ProviderProperties;
+import org.mrgeo.data.image.MrsImageDataProvider;
+import org.mrgeo.image.MrsImage;
+import org.mrgeo.image.MrsPyramid;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps MrsImages (one per layer and zoom level) open between reads.  Tiles of a coverage are
+ * fetched lazily, long after MrGeoReader.read() has returned, so the images can't be closed at
+ * the end of the read.  Instead, they're closed once they haven't been used for a while.
+ * <p>
+ * Images are checked out with get() and must be handed back with release().  An image that's
+ * evicted (or invalidated) while a read still holds it stays open until the last holder releases
+ * it.
+ */
+class MrGeoImagePool implements MrGeoMetadataCache.Listener
+{
+private final static String IMAGE_POOL_SIZE = "image.pool.size";
+private final static String IMAGE_POOL_SIZE_DEFAULT = "200";
+private final static String IMAGE_POOL_EXPIRE = "image.pool.expire";
+private final static String IMAGE_POOL_EXPIRE_DEFAULT = "300";  // 300 sec (5 min)
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoImagePool");
+
+private static MrGeoImagePool instance = null;
+
+private final ProviderProperties providerProperties;
+private final LoadingCache<Key, Entry> images;
+
+static class Entry
+{
+  final MrsImage image;
+  private final Key key;
+
+  // guarded by this
+  private int refs = 0;
+  private boolean removed = false;
+
+  private Entry(Key key, MrsImage image)
+  {
+    this.key = key;
+    this.image = image;
+  }
+}
+
+private static class Key
+{
+  final String layer;
+  final int zoom;
+
+  Key(String layer, int zoom)
+  {
+    this.layer = layer;
+    this.zoom = zoom;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (this == o)
+    {
+      return true;
+    }
+    if (!(o instanceof Key))
+    {
+      return false;
+    }
+
+    Key key = (Key) o;
+    return zoom == key.zoom && layer.equals(key.layer);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return 31 * layer.hashCode() + zoom;
+  }
+}
+
+static synchronized MrGeoImagePool getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoImagePool(config);
+  }
+
+  return instance;
+}
+
+private MrGeoImagePool(Properties config)
+{
+  providerProperties = new ProviderProperties(config.getProperty(MrGeoReader.USERNAME, ""), config.getProperty(MrGeoReader.USER_ROLES, ""));
+
+  long size = Long.parseLong(config.getProperty(IMAGE_POOL_SIZE, IMAGE_POOL_SIZE_DEFAULT));
+  long expire = Long.parseLong(config.getProperty(IMAGE_POOL_EXPIRE, IMAGE_POOL_EXPIRE_DEFAULT));
+
+  images = CacheBuilder.newBuilder()
+      .maximumSize(size)
+      .expireAfterAccess(expire, TimeUnit.SECONDS)
+      .removalListener(new RemovalListener<Key, Entry>()
+      {
+        @Override
+        public void onRemoval(RemovalNotification<Key, Entry> notification)
+        {
+          Entry entry = notification.getValue();
+          synchronized (entry)
+          {
+            entry.removed = true;
+            if (entry.refs > 0)
+            {
+              // closed by the last release()
+              return;
+            }
+          }
+
+          log.fine("Closing image: " + notification.getKey().layer + " (" + notification.getKey().zoom + ")");
+          entry.image.close();
+        }
+      })
+      .build(new CacheLoader<Key, Entry>()
+      {
+        @Override
+        public Entry load(Key key) throws Exception
+        {
+          MrsImageDataProvider dp = DataProviderFactory
+              .getMrsImageDataProvider(key.layer, DataProviderFactory.AccessMode.READ, providerProperties);
+
+          MrsImage image = MrsPyramid.open(dp).getImage(key.zoom);
+          if (image == null)
+          {
+            throw new IOException("Zoom level " + key.zoom + " does not exist in " + key.layer);
+          }
+
+          return new Entry(key, image);
+        }
+      });
+
+  MrGeoMetadataCache.getInstance(config).addListener(this);
+}
+
+Entry get(String layer, int zoom) throws IOException
+{
+  Key key = new Key(layer, zoom);
+  try
+  {
+    while (true)
+    {
+      Entry entry = images.get(key);
+      synchronized (entry)
+      {
+        // evicted between the lookup and here, the next lookup loads a fresh one
+        if (!entry.removed)
+        {
+          entry.refs++;
+          return entry;
+        }
+      }
+    }
+  }
+  catch (ExecutionException | UncheckedExecutionException e)
+  {
+    if (e.getCause() instanceof IOException)
+    {
+      throw (IOException) e.getCause();
+    }
+    throw new IOException("Error opening " + layer + " (" + zoom + ")", e.getCause());
+  }
+}
+
+void release(Entry entry)
+{
+  synchronized (entry)
+  {
+    entry.refs--;
+    if (entry.refs > 0 || !entry.removed)
+    {
+      return;
+    }
+  }
+
+  log.fine("Closing released image: " + entry.key.layer + " (" + entry.key.zoom + ")");
+  entry.image.close();
+}
+
+void invalidate(String layer)
+{
+  for (Key key : images.asMap().keySet())
+  {
+    if (key.layer.equals(layer))
+    {
+      images.invalidate(key);
+    }
+  }
+}
+
+@Override
+public void metadataChanged(String name)
+{
+  invalidate(name);
+}
+
+}
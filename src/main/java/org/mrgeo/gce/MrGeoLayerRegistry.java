@@ -0,0 +1,169 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import org.geotools.util.logging.Logging;
+import org.mrgeo.data.DataProviderFactory;
+import org.mrgeo.data.ProviderProperties;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The process-wide list of MrGeo layers, shared by every MrGeoReader.  The image base is listed
+ * once when the registry is created, then again periodically in the background (and whenever the
+ * layer updater does its own listing), so readers answer checkName() and getGridCoverageNames()
+ * from memory instead of listing storage every time GeoServer creates a reader.
+ */
+class MrGeoLayerRegistry
+{
+private final static String LAYER_REFRESH = "layer.refresh";
+private final static String LAYER_REFRESH_DEFAULT = "60";  // 60 sec
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoLayerRegistry");
+
+private static MrGeoLayerRegistry instance = null;
+
+private final ProviderProperties providerProperties;
+// null if background listing is off
+private final ScheduledExecutorService refresher;
+
+// immutable snapshots, replaced as a whole on each update
+private volatile Set<String> layers = Collections.emptySet();
+private volatile String[] names = new String[0];
+
+static synchronized MrGeoLayerRegistry getInstance(Properties config) throws IOException
+{
+  if (instance == null)
+  {
+    instance = new MrGeoLayerRegistry(config);
+  }
+
+  return instance;
+}
+
+private MrGeoLayerRegistry(Properties config) throws IOException
+{
+  providerProperties = new ProviderProperties(config.getProperty(MrGeoReader.USERNAME, ""), config.getProperty(MrGeoReader.USER_ROLES, ""));
+
+  long refresh = Long.parseLong(config.getProperty(LAYER_REFRESH, LAYER_REFRESH_DEFAULT));
+
+  update(Arrays.asList(DataProviderFactory.listImages(providerProperties)));
+
+  if (refresh > 0)
+  {
+    refresher = Executors.newSingleThreadScheduledExecutor(new MrGeoThreadFactory("mrgeo-layers"));
+    refresher.scheduleWithFixedDelay(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          refresh();
+        }
+        catch (Exception e)
+        {
+          // keep the old list, try again next time
+          log.warning("Error listing MrGeo layers: " + e.getMessage());
+        }
+      }
+    }, refresh, refresh, TimeUnit.SECONDS);
+  }
+  else
+  {
+    refresher = null;
+  }
+}
+
+// Called when the web application stops
+static synchronized void shutdown()
+{
+  if (instance != null && instance.refresher != null)
+  {
+    instance.refresher.shutdownNow();
+  }
+
+  instance = null;
+}
+
+void refresh() throws IOException
+{
+  if (update(Arrays.asList(DataProviderFactory.listImages(providerProperties))))
+  {
+    // layers were added or removed, don't make the catalog wait for its next update
+    MrGeoLayerUpdater updater = MrGeoFormatFactorySpi.getUpdater();
+    if (updater != null && updater.isEnabled())
+    {
+      updater.trigger();
+    }
+  }
+}
+
+// returns true if the layers changed
+boolean update(Collection<String> images)
+{
+  Set<String> updated = Collections.unmodifiableSet(new HashSet<>(images));
+
+  if (!updated.equals(layers))
+  {
+    layers = updated;
+    names = updated.toArray(new String[updated.size()]);
+
+    if (log.isLoggable(Level.FINE))
+    {
+      log.fine("Layers found:");
+      for (String layer : updated)
+      {
+        log.fine("  " + layer);
+      }
+    }
+
+    return true;
+  }
+
+  return false;
+}
+
+boolean contains(String name)
+{
+  return layers.contains(name);
+}
+
+String[] getNames()
+{
+  return names.clone();
+}
+
+int size()
+{
+  return layers.size();
+}
+
+}
@@ -18,6 +18,9 @@
 
 package org.mrgeo.gce;
 
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.geoserver.catalog.*;
 import org.geoserver.catalog.impl.CoverageDimensionImpl;
 import org.geoserver.catalog.impl.CoverageInfoImpl;
@@ -27,26 +30,38 @@ import org.geotools.coverage.grid.GeneralGridEnvelope;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.geometry.GeneralEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope;
-import org.geotools.referencing.CRS;
 import org.geotools.util.NumberRange;
 import org.geotools.util.logging.Logging;
+import org.mrgeo.core.MrGeoConstants;
+import org.mrgeo.core.MrGeoProperties;
 import org.mrgeo.data.DataProviderFactory;
 import org.mrgeo.data.ProviderProperties;
 import org.mrgeo.data.image.MrsImageDataProvider;
+import org.mrgeo.hdfs.utils.HadoopFileUtils;
 import org.mrgeo.image.ImageStats;
 import org.mrgeo.image.MrsPyramidMetadata;
 import org.mrgeo.utils.LongRectangle;
 import org.mrgeo.utils.tms.Bounds;
 import org.opengis.coverage.SampleDimensionType;
 import org.opengis.coverage.grid.GridGeometry;
-import org.opengis.referencing.FactoryException;
-import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import java.awt.*;
 import java.awt.image.DataBuffer;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,11 +70,21 @@ public class MrGeoLayerUpdater implements Runnable
 final static String ENABLE_UPDATE = "enable.update";
 private final static String UPDATE_TIME = "update.time";
 private final static String UPDATE_TIME_DEFAULT = "300";  // 300 sec (5 min)
+private final static String UPDATE_THREADS = "update.threads";
+private final static String UPDATE_THREADS_DEFAULT = "8";
+
+private final static long BACKOFF_MIN = 5 * 1000;  // 5 sec
+private final static long BACKOFF_MAX = 10 * 60 * 1000;  // 10 min
 
 private final static String WORKSPACE = "workspace";
 private final static String STORE = "coveragestore";
 private final static String NAMESPACE = "namespace";
 
+private final static String TRANSIENT_LAYERS = "catalog.transient";
+
+// coverage metadata key for the stamp of the pyramid the coverage was built from
+private final static String STAMP = "mrgeo.stamp";
+
 private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoLayerUpdater");
 
 final Properties config;
@@ -69,6 +94,63 @@ final String coveragestore;
 final String namespace;
 final ProviderProperties providerProperties;
 
+// keep the MrGeo coverages and layers out of the data directory (see MrGeoTransientFilter)
+final boolean transientLayers;
+
+// reads metadata and builds coverages for new images
+private final ThreadPoolExecutor builders;
+
+private final MrGeoCacheWarmer warmer;
+
+// pyramid -> stamp of the version that's in the catalog
+private final Map<String, Long> stamps = new HashMap<>();
+private boolean seeded = false;
+
+// the last image listing, and the image base's modification time when it was made
+private Set<String> images = Collections.emptySet();
+private long listed = 0;
+
+// image -> its directory's time and its stamp at the last update, so unchanged images aren't stat'ed
+private Map<String, long[]> checked = new HashMap<>();
+
+private final ScheduledExecutorService scheduler;
+private final Random random = new Random();
+
+// guarded by this
+private ScheduledFuture<?> next = null;
+private long generation = 0;
+private boolean running = false;
+private boolean triggered = false;
+private boolean shutdown = false;
+private int failures = 0;
+
+private volatile Scan lastScan = null;
+
+// What an update did, and how long it took
+static class Scan
+{
+  final long start;
+  long duration;
+  boolean ok;
+
+  int images;
+  int added;
+  int changed;
+  int removed;
+  int failed;
+
+  Scan(long start)
+  {
+    this.start = start;
+  }
+
+  @Override
+  public String toString()
+  {
+    return (ok ? "" : "FAILED ") + "images: " + images + " added: " + added + " changed: " + changed +
+        " removed: " + removed + " failed: " + failed + " (" + duration + "ms)";
+  }
+}
 
 public MrGeoLayerUpdater(Properties config)
 {
@@ -82,94 +164,272 @@ public MrGeoLayerUpdater(Properties config)
   coveragestore = config.getProperty(STORE, "mrgeo");
   namespace = config.getProperty(NAMESPACE, workspace);
 
+  transientLayers = Boolean.parseBoolean(config.getProperty(TRANSIENT_LAYERS, "false"));
+
   sleep = sleepsec * 1000;
 
-  Thread thread = new Thread(this);
-  thread.start();
+  int threads = Math.max(1, Integer.parseInt(config.getProperty(UPDATE_THREADS, UPDATE_THREADS_DEFAULT)));
+  builders = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+      new MrGeoThreadFactory("mrgeo-updater"));
+  builders.allowCoreThreadTimeOut(true);
 
+  warmer = MrGeoCacheWarmer.getInstance(config);
+
+  scheduler = Executors.newSingleThreadScheduledExecutor(new MrGeoThreadFactory("mrgeo-layer-updater"));
+  synchronized (this)
+  {
+    schedule(0);
+  }
 }
 
-@Override
-public void run()
+// Only the most recently scheduled update runs.  A cancelled update that had already started
+// (cancel() doesn't stop it, and still reports success) sees it's stale and does nothing, so
+// there's never more than one chain of updates.  Call with the lock held.
+private void schedule(long delay)
 {
-  long start = System.currentTimeMillis();
-
-  boolean done = false;
-
-  while (!done)
+  final long gen = ++generation;
+  next = scheduler.schedule(new Runnable()
   {
-    try
+    @Override
+    public void run()
     {
-      log.fine("update layers: " + (int) ((System.currentTimeMillis() - start) / 1000));
-
-      // get the catalog
-      Catalog catalog = (Catalog) GeoServerExtensions.bean("catalog");
-
-      if (catalog != null)
+      synchronized (MrGeoLayerUpdater.this)
       {
-
-        CoverageStoreInfo csi = updateStores(catalog);
-
-        if (csi != null)
+        if (gen != generation || shutdown)
         {
-          updateCoverages(catalog, csi);
-        }
-        else
-        {
-          log.warning("can't access coverage store");
+          return;
         }
+        running = true;
       }
-      else
+
+      MrGeoLayerUpdater.this.run();
+    }
+  }, delay, TimeUnit.MILLISECONDS);
+}
+
+@Override
+public void run()
+{
+  Scan scan = new Scan(System.currentTimeMillis());
+  boolean ok = false;
+
+  try
+  {
+    log.fine("update layers");
+
+    // get the catalog
+    Catalog catalog = (Catalog) GeoServerExtensions.bean("catalog");
+
+    if (catalog != null)
+    {
+      if (transientLayers)
       {
-        log.warning("can't access catalog");
+        MrGeoTransientFilter.install(catalog, workspace, coveragestore);
       }
 
-      // check here, bacause we need to run through all the setup once...
-      if (config.getProperty(MrGeoLayerUpdater.ENABLE_UPDATE, "false").equals("false"))
+      CoverageStoreInfo csi = updateStores(catalog);
+
+      if (csi != null)
       {
-        done = true;
+        updateCoverages(catalog, csi, scan);
+        ok = true;
       }
       else
       {
-        Thread.sleep(sleep);
+        log.warning("can't access coverage store");
       }
     }
-    catch (Exception e)
+    else
     {
-      e.printStackTrace();
-      done = true;
+      log.warning("can't access catalog");
     }
   }
+  catch (Exception e)
+  {
+    log.log(Level.WARNING, "Error updating MrGeo layers", e);
+  }
+
+  scan.duration = System.currentTimeMillis() - scan.start;
+  scan.ok = ok;
+  lastScan = scan;
+  MrGeoMetrics.getInstance(config).layerUpdate(scan);
+
+  if (!ok || scan.added + scan.changed + scan.removed + scan.failed > 0)
+  {
+    log.info("Layer update: " + scan);
+  }
+  else
+  {
+    log.fine("Layer update: " + scan);
+  }
+
+  reschedule(ok);
 }
 
-private void updateCoverages(Catalog catalog, CoverageStoreInfo csi)
+// Schedule the next update.  Only the finishing update does this, so updates can't overlap.
+private synchronized void reschedule(boolean ok)
 {
+  running = false;
+
+  if (shutdown)
+  {
+    return;
+  }
+
+  long delay;
+  if (ok)
+  {
+    failures = 0;
+
+    if (triggered)
+    {
+      delay = 0;
+    }
+    // we always need to run through all the setup once, but after that, only if updates are on...
+    else if (!isEnabled())
+    {
+      next = null;
+      return;
+    }
+    else
+    {
+      delay = sleep;
+    }
+  }
+  else
+  {
+    failures++;
+    delay = backoff(failures);
+
+    log.warning("Layer update failed (" + failures + " in a row), retrying in " + (delay / 1000) + "s");
+  }
+
+  triggered = false;
+  schedule(delay);
+}
+
+// Exponential backoff, with jitter so a cluster of GeoServers that lost storage together doesn't
+// come back to it in lockstep
+private long backoff(int failures)
+{
+  long delay = Math.min(BACKOFF_MAX, BACKOFF_MIN << Math.min(failures - 1, 16));
+  return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+}
+
+/**
+ * Run an update as soon as possible (i.e. new images have been written), instead of waiting for
+ * the next scheduled one.  If an update is running, another one is run right after it.
+ */
+synchronized void trigger()
+{
+  if (shutdown)
+  {
+    return;
+  }
+
+  if (running)
+  {
+    // the running update reschedules right away when it's done
+    triggered = true;
+  }
+  else
+  {
+    // replaces the waiting update (if there is one)
+    if (next != null)
+    {
+      next.cancel(false);
+    }
+    schedule(0);
+  }
+}
+
+// Stop updating, interrupting an update in progress
+void shutdown()
+{
+  synchronized (this)
+  {
+    shutdown = true;
+    if (next != null)
+    {
+      next.cancel(false);
+    }
+  }
+
+  scheduler.shutdownNow();
+  builders.shutdownNow();
+
   try
   {
-    Set<String> newImages = new HashSet<>();
-    Set<String> oldImages = new HashSet<>();
+    if (!scheduler.awaitTermination(10, TimeUnit.SECONDS))
+    {
+      log.warning("Layer update didn't stop");
+    }
+  }
+  catch (InterruptedException e)
+  {
+    Thread.currentThread().interrupt();
+  }
+}
 
-    Collections.addAll(newImages, DataProviderFactory.listImages(providerProperties));
+// are periodic updates turned on?
+boolean isEnabled()
+{
+  return !config.getProperty(MrGeoLayerUpdater.ENABLE_UPDATE, "false").equals("false");
+}
 
-    for (CoverageInfo ci: catalog.getCoveragesByCoverageStore(csi))
+Scan getLastScan()
+{
+  return lastScan;
+}
+
+private void updateCoverages(Catalog catalog, CoverageStoreInfo csi, Scan scan) throws IOException
+{
+  try
+  {
+    Map<String, Long> current = scan();
+    scan.images = current.size();
+
+    // everything found on the first update is just being registered, not new data
+    boolean initial = !seeded;
+    if (!seeded)
+    {
+      seed(catalog, csi, current);
+      seeded = true;
+    }
+
+    Set<String> added = new HashSet<>();
+    Set<String> changed = new HashSet<>();
+    Set<String> removed = new HashSet<>();
+
+    for (Map.Entry<String, Long> entry : current.entrySet())
     {
-      String name = ci.getNativeCoverageName();
-      if (newImages.contains(name)) {
-        newImages.remove(name);
+      Long known = stamps.get(entry.getKey());
+      if (known == null)
+      {
+        added.add(entry.getKey());
       }
-      else
+      // a stamp of 0 means we can't tell, so the pyramid is left alone
+      else if (entry.getValue() != 0 && !entry.getValue().equals(known))
       {
-        oldImages.add(ci.getName());
+        changed.add(entry.getKey());
+      }
+    }
 
-        // also need to add layer names, in case they are different than the coverage.  Usually they aren't,
-        // but if someone mucked about with them, they could be...
-        for (LayerInfo li : catalog.getLayers(ci))
-        {
-          oldImages.add(li.getName());
-        }
+    for (String name : stamps.keySet())
+    {
+      if (!current.containsKey(name))
+      {
+        removed.add(name);
       }
     }
 
+    if (added.isEmpty() && changed.isEmpty() && removed.isEmpty())
+    {
+      log.fine("No layer changes");
+      return;
+    }
+
+    log.info("Layer changes: added: " + added.size() + " changed: " + changed.size() + " removed: " + removed.size());
 
     NamespaceInfo nsi = catalog.getNamespaceByPrefix(namespace);
     if (nsi == null)
@@ -185,204 +445,463 @@ private void updateCoverages(Catalog catalog, CoverageStoreInfo csi)
 
     CatalogFacade facade = catalog.getFacade();
 
-    for (String newImage: newImages)
+    addCoverages(catalog, csi, nsi, facade, added, current, scan, !initial);
+
+    for (String image : changed)
     {
-      final MrsImageDataProvider dp = DataProviderFactory.getMrsImageDataProvider(newImage, DataProviderFactory.AccessMode.READ, providerProperties);
-      final MrsPyramidMetadata meta = dp.getMetadataReader().read();
+      try
+      {
+        if (updateCoverage(catalog, csi, image, current.get(image)))
+        {
+          stamps.put(image, current.get(image));
+          scan.changed++;
 
-      int zoom = meta.getMaxZoomLevel();
+          warmer.warm(image);
+        }
+        else
+        {
+          // someone removed it from the catalog, treat it as new
+          stamps.remove(image);
+        }
+      }
+      catch (IOException e)
+      {
+        log.log(Level.SEVERE, "Error updating coverage for " + image, e);
+        scan.failed++;
+      }
+    }
 
-      CoverageInfoImpl ci = (CoverageInfoImpl) catalog.getFactory().createCoverage();
-      ci.setEnabled(true);
+    for (String image : removed)
+    {
+      removeCoverage(catalog, csi, image);
+      stamps.remove(image);
+      scan.removed++;
+    }
+  }
+  catch (InterruptedException e)
+  {
+    Thread.currentThread().interrupt();
+  }
+}
 
-      ci.setName(meta.getPyramid());
-      ci.setNativeName(meta.getPyramid());
-      ci.setNativeCoverageName(meta.getPyramid());
+/**
+ * Add coverages for new images.  Reading the metadata and building the coverage is done on the
+ * builder pool (that's where the time goes, especially with many images in remote storage), while
+ * the catalog is only changed from this thread, as each coverage becomes ready.  A failure only
+ * skips that image, it isn't recorded so it will be tried again next time.
+ */
+private void addCoverages(final Catalog catalog, final CoverageStoreInfo csi, final NamespaceInfo nsi,
+    CatalogFacade facade, Set<String> added, final Map<String, Long> current, Scan scan, boolean warm)
+    throws InterruptedException
+{
+  CompletionService<CoverageInfoImpl> completion = new ExecutorCompletionService<>(builders);
+  Map<Future<CoverageInfoImpl>, String> pending = new HashMap<>();
 
-      Bounds bounds = meta.getBounds();
+  for (final String image : added)
+  {
+    pending.put(completion.submit(new Callable<CoverageInfoImpl>()
+    {
+      @Override
+      public CoverageInfoImpl call() throws Exception
+      {
+        return buildCoverage(catalog, csi, nsi, image, current.get(image));
+      }
+    }), image);
+  }
 
-      String epsg = "EPSG:4326";
-      CoordinateReferenceSystem epsg4326 = CRS.decode(epsg);
+  try
+  {
+    CatalogBuilder builder = new CatalogBuilder(catalog);
+    for (int i = 0; i < pending.size(); i++)
+    {
+      Future<CoverageInfoImpl> future = completion.take();
+      String image = pending.get(future);
 
-      final GeneralEnvelope croppedEnvelope = new GeneralEnvelope(
-          new double[] { bounds.w, bounds.s }, new double[] { bounds.e, bounds.n });
-      croppedEnvelope.setCoordinateReferenceSystem(epsg4326);
+      try
+      {
+        if (registerCoverage(catalog, facade, builder, future.get()))
+        {
+          stamps.put(image, current.get(image));
+          scan.added++;
 
-      LongRectangle lr = meta.getPixelBounds(zoom);
+          if (warm)
+          {
+            warmer.warm(image);
+          }
+        }
+        else
+        {
+          scan.failed++;
+        }
+      }
+      catch (ExecutionException e)
+      {
+        log.log(Level.SEVERE, "Error adding coverage for " + image, e.getCause());
+        scan.failed++;
+      }
+    }
+  }
+  finally
+  {
+    // only does anything if we were interrupted
+    for (Future<CoverageInfoImpl> future : pending.keySet())
+    {
+      future.cancel(true);
+    }
+  }
+}
 
-      final GridGeometry gg = new GridGeometry2D(
-          new GeneralGridEnvelope(
-              new Rectangle((int)lr.getMinX(), (int)lr.getMinY(), (int)lr.getMaxX(), (int)lr.getMaxY())), croppedEnvelope);
+/**
+ * Get the images, and a modification stamp for each one.  The stamp is the modification time of
+ * the pyramid's metadata file (the same one the metadata cache uses), which is rewritten whenever
+ * the pyramid is rebuilt.  Stat'ing every metadata file would be a call per image per update, so
+ * the image base is listed (one call) for its directories' times, and only images that are new,
+ * or whose directory has changed, have their metadata file stat'ed.  Rewriting a file in a hadoop
+ * filesystem replaces it, which changes its directory's time.  The (more expensive) image listing
+ * is only redone when the image base itself has changed, i.e. an image has been added or removed.
+ * Images that aren't in a hadoop filesystem get a stamp of 0, and are only checked for being added
+ * or removed.
+ */
+private Map<String, Long> scan() throws IOException
+{
+  long checkpoint = 0;
+  Map<String, Long> dirs = new HashMap<>();
+  try
+  {
+    Path base = new Path(MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_HDFS_IMAGE, "/mrgeo/images"));
+    FileSystem fs = HadoopFileUtils.getFileSystem(base);
 
-      ci.setEnabled(true);
-      ci.setGrid(gg);
-      ci.setNativeFormat(MrGeoFormat.FORMAT_NAME);
-      ci.setAbstract("");
-      ci.setAdvertised(true);
-      ci.setCatalog(catalog);
-      ci.setDescription("");
-      ci.setNamespace(nsi);
+    checkpoint = fs.getFileStatus(base).getModificationTime();
+    for (FileStatus status : fs.listStatus(base))
+    {
+      dirs.put(status.getPath().getName(), status.getModificationTime());
+    }
+  }
+  catch (Exception e)
+  {
+    log.finest("Can't get the image base: " + e.getMessage());
+  }
 
-      ReferencedEnvelope bb = ReferencedEnvelope.create(croppedEnvelope, epsg4326);
-      ci.setLatLonBoundingBox(bb);
-      ci.setNativeBoundingBox(bb);
-      ci.setNativeCRS(bb.getCoordinateReferenceSystem());
+  if (checkpoint == 0 || checkpoint != listed)
+  {
+    images = new HashSet<>();
+    Collections.addAll(images, DataProviderFactory.listImages(providerProperties));
+    listed = checkpoint;
 
-      ci.setProjectionPolicy(ProjectionPolicy.REPROJECT_TO_DECLARED);
-      ci.setSRS(epsg);
-      ci.setStore(csi);
-      ci.setTitle(meta.getPyramid());
-      ci.setDescription("Created from MrGeo image " + dp.getResourceName());
+    // share the listing with the readers
+    MrGeoLayerRegistry.getInstance(config).update(images);
+  }
 
+  Map<String, Long> current = new HashMap<>();
+  Map<String, long[]> now = new HashMap<>();
+  for (String image : images)
+  {
+    Long dir = dirs.get(image);
+    long[] last = checked.get(image);
 
-      ci.setNativeFormat("GEOTIFF");
+    long stamp;
+    if (dir != null && last != null && last[0] == dir)
+    {
+      stamp = last[1];
+    }
+    else
+    {
+      stamp = MrGeoMetadataCache.modificationTime(image);
+    }
 
-      LinkedList<String> fmtList = new LinkedList<>();
-      fmtList.add("GIF");
-      fmtList.add("PNG");
-      fmtList.add("JPEG");
-      fmtList.add("TIFF");
-      fmtList.add("ImageMosaic");
-      fmtList.add("GEOTIFF");
-      fmtList.add("ArcGrid");
-      fmtList.add("Gtopo30");
+    // without a directory time or a stamp, there's nothing to tell a change by next time
+    if (dir != null && stamp != 0)
+    {
+      now.put(image, new long[]{dir, stamp});
+    }
+    current.put(image, stamp);
+  }
+  checked = now;
 
-      ci.setSupportedFormats(fmtList);
+  return current;
+}
 
-      LinkedList<String> srsList = new LinkedList<>();
-      srsList.add("EPSG:4326");
-      ci.setRequestSRS(srsList);
-      ci.setResponseSRS(srsList);
+// Pick up the coverages already in the catalog (i.e. persisted from the last run), with the stamp
+// of the pyramid they were built from.  Coverages without one (i.e. added by hand, or by an older
+// version) are taken to be current, rather than all being rebuilt on the first update.
+private void seed(Catalog catalog, CoverageStoreInfo csi, Map<String, Long> current)
+{
+  for (CoverageInfo ci : catalog.getCoveragesByCoverageStore(csi))
+  {
+    String name = ci.getNativeCoverageName();
+    Serializable stamp = ci.getMetadata().get(STAMP);
+    if (stamp instanceof Long)
+    {
+      stamps.put(name, (Long) stamp);
+    }
+    else
+    {
+      Long now = current.get(name);
+      stamps.put(name, now == null ? 0L : now);
+    }
+  }
+}
 
-      ArrayList<CoverageDimensionInfo> dims  = new ArrayList<>(3);
-      for (int b = 0; b < meta.getBands(); b++)
-      {
-        ImageStats stats = meta.getStats(b);
+// Build the coverage for an image, without touching the catalog (called from the builder pool)
+private CoverageInfoImpl buildCoverage(Catalog catalog, CoverageStoreInfo csi, NamespaceInfo nsi, String image,
+    long stamp) throws IOException
+{
+  final MrsImageDataProvider dp = DataProviderFactory.getMrsImageDataProvider(image, DataProviderFactory.AccessMode.READ, providerProperties);
+  final MrsPyramidMetadata meta = dp.getMetadataReader().read();
 
-        CoverageDimensionImpl cdi = (CoverageDimensionImpl) catalog.getFactory().createCoverageDimension();
-        cdi.setName("band " + b);
+  CoverageInfoImpl ci = (CoverageInfoImpl) catalog.getFactory().createCoverage();
+  ci.setEnabled(true);
 
-        LinkedList<Double> dblList = new LinkedList<>();
-        dblList.add(meta.getDefaultValue(b));
-        cdi.setNullValues(dblList);
+  ci.setName(meta.getPyramid());
+  ci.setNativeName(meta.getPyramid());
+  ci.setNativeCoverageName(meta.getPyramid());
 
-        if (stats != null)
-        {
-          NumberRange<Double> minmax = NumberRange.create(stats.min, stats.max);
-          cdi.setRange(minmax);
-        }
-        switch (meta.getTileType()) {
-        case DataBuffer.TYPE_BYTE:
-          cdi.setDimensionType(SampleDimensionType.UNSIGNED_8BITS);
-          cdi.setDescription("Band " + (b + 1) + " (byte)");
-          break;
-        case DataBuffer.TYPE_SHORT:
-          cdi.setDimensionType(SampleDimensionType.SIGNED_16BITS);
-          cdi.setDescription("Band " + (b + 1) + " (short)");
-          break;
-        case DataBuffer.TYPE_USHORT:
-          cdi.setDimensionType(SampleDimensionType.UNSIGNED_16BITS);
-          cdi.setDescription("Band " + (b + 1) + " (unsigned short)");
-          break;
-        case DataBuffer.TYPE_INT:
-          cdi.setDimensionType(SampleDimensionType.SIGNED_32BITS);
-          cdi.setDescription("Band " + (b + 1) + " (int)");
-          break;
-        case DataBuffer.TYPE_FLOAT:
-          cdi.setDimensionType(SampleDimensionType.REAL_32BITS);
-          cdi.setDescription("Band " + (b + 1) + " (float)");
-          break;
-        case DataBuffer.TYPE_DOUBLE:
-          cdi.setDimensionType(SampleDimensionType.REAL_64BITS);
-          cdi.setDescription("Band " + (b + 1) + " (double)");
-          break;
-        }
+  String epsg = "EPSG:4326";
+  ReferencedEnvelope bb = getEnvelope(meta);
 
-        dims.add(cdi);
-      }
+  ci.setEnabled(true);
+  ci.setGrid(getGridGeometry(meta, bb));
+  ci.setNativeFormat(MrGeoFormat.FORMAT_NAME);
+  ci.setAbstract("");
+  ci.setAdvertised(true);
+  ci.setCatalog(catalog);
+  ci.setDescription("");
+  ci.setNamespace(nsi);
 
-      ci.setDimensions(dims);
+  ci.setLatLonBoundingBox(bb);
+  ci.setNativeBoundingBox(bb);
+  ci.setNativeCRS(bb.getCoordinateReferenceSystem());
 
-      ValidationResult valid = catalog.validate(ci, true);
-      if (valid.isValid())
-      {
-        log.info("Adding Coverage: " + meta.getPyramid());
+  ci.setProjectionPolicy(ProjectionPolicy.REPROJECT_TO_DECLARED);
+  ci.setSRS(epsg);
+  ci.setStore(csi);
+  ci.setTitle(meta.getPyramid());
+  ci.setDescription("Created from MrGeo image " + dp.getResourceName());
 
-        // NOTE:  There is a bug in GeoServer (at least the 2.8.x versions) where the add w/ CoverageInfo
-        // isn't performing the synchronize on it's facade.  Luckly, I can get the facade (it is above) and
-        // sync here.  It works like a charm!
-        synchronized (facade)
-        {
-          catalog.add(ci);
-        }
 
-        LayerInfoImpl li = (LayerInfoImpl) catalog.getFactory().createLayer();
-        li.setResource(ci);
-        li.setEnabled(true);
-        // li.setAdvertised(true);  This is ignored in the code...
-        li.setName(ci.getName());
-        li.setType(PublishedType.RASTER);
-        li.setPath("/");
-        StyleInfo style = new CatalogBuilder(catalog).getDefaultStyle(li.getResource());
-        li.setDefaultStyle(style);
-
-//        li.setAbstract();
-//        li.setAttribution();
-//        li.setAuthorityURLs();
-//        li.setId();
-//        li.setIdentifiers();
-//        li.setLegend();
-//        li.setMetadata();
-//        li.setOpaque();
-//        li.setQueryable();
-//        li.setStyles();
-//        li.setTitle();
-
-        valid = catalog.validate(li, true);
-        if (valid.isValid())
-        {
-          catalog.add(li);
-          log.fine("Adding Layer: " + meta.getPyramid());
-        }
-        else
-        {
-          log.severe("Invalid Layer: " + meta.getPyramid());
-        }
-      }
-      else
-      {
-        log.severe("Invalid Coverage: " + meta.getPyramid());
-      }
+  ci.setNativeFormat("GEOTIFF");
+
+  LinkedList<String> fmtList = new LinkedList<>();
+  fmtList.add("GIF");
+  fmtList.add("PNG");
+  fmtList.add("JPEG");
+  fmtList.add("TIFF");
+  fmtList.add("ImageMosaic");
+  fmtList.add("GEOTIFF");
+  fmtList.add("ArcGrid");
+  fmtList.add("Gtopo30");
+
+  ci.setSupportedFormats(fmtList);
+
+  LinkedList<String> srsList = new LinkedList<>();
+  srsList.add("EPSG:4326");
+  ci.setRequestSRS(srsList);
+  ci.setResponseSRS(srsList);
+
+  ci.setDimensions(getDimensions(catalog, meta));
+
+  ci.getMetadata().put(STAMP, stamp);
+
+  return ci;
+}
+
+private boolean registerCoverage(Catalog catalog, CatalogFacade facade, CatalogBuilder builder, CoverageInfoImpl ci)
+{
+  ValidationResult valid = catalog.validate(ci, true);
+  if (valid.isValid())
+  {
+    log.info("Adding Coverage: " + ci.getName());
+
+    // NOTE:  There is a bug in GeoServer (at least the 2.8.x versions) where the add w/ CoverageInfo
+    // isn't performing the synchronize on it's facade.  Luckly, I can get the facade (it is above) and
+    // sync here.  It works like a charm!
+    synchronized (facade)
+    {
+      catalog.add(ci);
     }
 
-    for (String old: oldImages)
+    LayerInfoImpl li = (LayerInfoImpl) catalog.getFactory().createLayer();
+    li.setResource(ci);
+    li.setEnabled(true);
+    // li.setAdvertised(true);  This is ignored in the code...
+    li.setName(ci.getName());
+    li.setType(PublishedType.RASTER);
+    li.setPath("/");
+    StyleInfo style = builder.getDefaultStyle(li.getResource());
+    li.setDefaultStyle(style);
+
+//    li.setAbstract();
+//    li.setAttribution();
+//    li.setAuthorityURLs();
+//    li.setId();
+//    li.setIdentifiers();
+//    li.setLegend();
+//    li.setMetadata();
+//    li.setOpaque();
+//    li.setQueryable();
+//    li.setStyles();
+//    li.setTitle();
+
+    valid = catalog.validate(li, true);
+    if (valid.isValid())
     {
-      LayerInfo li = catalog.getLayerByName(old);
-      if (li != null)
-      {
-        catalog.remove(li);
-      }
+      catalog.add(li);
+      log.fine("Adding Layer: " + ci.getName());
+    }
+    else
+    {
+      log.severe("Invalid Layer: " + ci.getName());
+    }
 
-      CoverageInfo ci = catalog.getCoverageByName(old);
-      if (ci != null)
-      {
-        catalog.remove(ci);
-      }
+    return true;
+  }
+
+  log.severe("Invalid Coverage: " + ci.getName());
+  return false;
+}
+
+// The pyramid has been rebuilt, update the coverage (keeping any edits made in GeoServer to the
+// title, styles, etc.) and drop anything cached from the old version
+private boolean updateCoverage(Catalog catalog, CoverageStoreInfo csi, String image, long stamp) throws IOException
+{
+  CoverageInfo ci = getCoverage(catalog, csi, image);
+  if (ci == null)
+  {
+    return false;
+  }
+
+  final MrsImageDataProvider dp = DataProviderFactory.getMrsImageDataProvider(image, DataProviderFactory.AccessMode.READ, providerProperties);
+  final MrsPyramidMetadata meta = dp.getMetadataReader().reload();
+
+  ReferencedEnvelope bb = getEnvelope(meta);
+
+  ci.setGrid(getGridGeometry(meta, bb));
+  ci.setLatLonBoundingBox(bb);
+  ci.setNativeBoundingBox(bb);
+
+  ci.getDimensions().clear();
+  ci.getDimensions().addAll(getDimensions(catalog, meta));
+
+  ci.getMetadata().put(STAMP, stamp);
+
+  log.info("Updating Coverage: " + ci.getName());
+  catalog.save(ci);
+
+  MrGeoMetadataCache.getInstance(config).changed(image);
+
+  return true;
+}
+
+private void removeCoverage(Catalog catalog, CoverageStoreInfo csi, String image)
+{
+  CoverageInfo ci = getCoverage(catalog, csi, image);
+  if (ci != null)
+  {
+    // also need to remove all the layers, in case they are different than the coverage.  Usually they
+    // aren't, but if someone mucked about with them, they could be...
+    for (LayerInfo li : catalog.getLayers(ci))
+    {
+      catalog.remove(li);
     }
 
+    log.info("Removing Coverage: " + ci.getName());
+    catalog.remove(ci);
   }
-  catch (IOException e)
+}
+
+private CoverageInfo getCoverage(Catalog catalog, CoverageStoreInfo csi, String image)
+{
+  CoverageInfo ci = catalog.getCoverageByCoverageStore(csi, image);
+  if (ci != null && image.equals(ci.getNativeCoverageName()))
   {
-    e.printStackTrace();
+    return ci;
   }
-  catch (NoSuchAuthorityCodeException e)
+
+  // the coverage was renamed
+  for (CoverageInfo info : catalog.getCoveragesByCoverageStore(csi))
   {
-    e.printStackTrace();
+    if (image.equals(info.getNativeCoverageName()))
+    {
+      return info;
+    }
   }
-  catch (FactoryException e)
+
+  return null;
+}
+
+private static ReferencedEnvelope getEnvelope(MrsPyramidMetadata meta)
+{
+  Bounds bounds = meta.getBounds();
+
+  // decoding the CRS is expensive, so use the one shared with the readers
+  CoordinateReferenceSystem epsg4326 = MrGeoReader.getEpsg4326();
+
+  final GeneralEnvelope croppedEnvelope = new GeneralEnvelope(
+      new double[] { bounds.w, bounds.s }, new double[] { bounds.e, bounds.n });
+  croppedEnvelope.setCoordinateReferenceSystem(epsg4326);
+
+  return ReferencedEnvelope.create(croppedEnvelope, epsg4326);
+}
+
+private static GridGeometry getGridGeometry(MrsPyramidMetadata meta, ReferencedEnvelope bb)
+{
+  LongRectangle lr = meta.getPixelBounds(meta.getMaxZoomLevel());
+
+  return new GridGeometry2D(
+      new GeneralGridEnvelope(
+          new Rectangle((int)lr.getMinX(), (int)lr.getMinY(), (int)lr.getMaxX(), (int)lr.getMaxY())), bb);
+}
+
+private static ArrayList<CoverageDimensionInfo> getDimensions(Catalog catalog, MrsPyramidMetadata meta)
+{
+  ArrayList<CoverageDimensionInfo> dims  = new ArrayList<>(3);
+  for (int b = 0; b < meta.getBands(); b++)
   {
-    e.printStackTrace();
+    ImageStats stats = meta.getStats(b);
+
+    CoverageDimensionImpl cdi = (CoverageDimensionImpl) catalog.getFactory().createCoverageDimension();
+    cdi.setName("band " + b);
+
+    LinkedList<Double> dblList = new LinkedList<>();
+    dblList.add(meta.getDefaultValue(b));
+    cdi.setNullValues(dblList);
+
+    if (stats != null)
+    {
+      NumberRange<Double> minmax = NumberRange.create(stats.min, stats.max);
+      cdi.setRange(minmax);
+    }
+    switch (meta.getTileType()) {
+    case DataBuffer.TYPE_BYTE:
+      cdi.setDimensionType(SampleDimensionType.UNSIGNED_8BITS);
+      cdi.setDescription("Band " + (b + 1) + " (byte)");
+      break;
+    case DataBuffer.TYPE_SHORT:
+      cdi.setDimensionType(SampleDimensionType.SIGNED_16BITS);
+      cdi.setDescription("Band " + (b + 1) + " (short)");
+      break;
+    case DataBuffer.TYPE_USHORT:
+      cdi.setDimensionType(SampleDimensionType.UNSIGNED_16BITS);
+      cdi.setDescription("Band " + (b + 1) + " (unsigned short)");
+      break;
+    case DataBuffer.TYPE_INT:
+      cdi.setDimensionType(SampleDimensionType.SIGNED_32BITS);
+      cdi.setDescription("Band " + (b + 1) + " (int)");
+      break;
+    case DataBuffer.TYPE_FLOAT:
+      cdi.setDimensionType(SampleDimensionType.REAL_32BITS);
+      cdi.setDescription("Band " + (b + 1) + " (float)");
+      break;
+    case DataBuffer.TYPE_DOUBLE:
+      cdi.setDimensionType(SampleDimensionType.REAL_64BITS);
+      cdi.setDescription("Band " + (b + 1) + " (double)");
+      break;
+    }
+
+    dims.add(cdi);
   }
+
+  return dims;
 }
 
 private CoverageStoreInfo updateStores(Catalog catalog)
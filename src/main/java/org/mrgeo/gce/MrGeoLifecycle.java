@@ -0,0 +1,37 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import org.geotools.util.logging.Logging;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.logging.Logger;
+
+class MrGeoLifecycle implements DisposableBean
+{
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoLifecycle");
+
+@Override
+public void destroy()
+{
+  log.info("Stopping MrGeo layer updates");
+  MrGeoFormatFactorySpi.shutdown();
+  MrGeoMetrics.shutdown();
+}
+}
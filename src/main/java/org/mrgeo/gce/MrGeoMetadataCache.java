@@ -0,0 +1,292 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.geotools.util.logging.Logging;
+import org.mrgeo.core.MrGeoConstants;
+import org.mrgeo.core.MrGeoProperties;
+import org.mrgeo.data.DataProviderFactory;
+import org.mrgeo.data.ProviderProperties;
+import org.mrgeo.data.image.MrsImageDataProvider;
+import org.mrgeo.hdfs.utils.HadoopFileUtils;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.utils.LongRectangle;
+
+import javax.media.jai.ImageLayout;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide cache of MrsPyramidMetadata, shared by every MrGeoReader.  Entries are refreshed
+ * in the background after they've been in the cache for a while, so readers always get an
+ * in-memory answer.  A refresh only re-reads the metadata if the pyramid's metadata file has a
+ * new modification time (or if the time can't be determined).
+ */
+class MrGeoMetadataCache
+{
+private final static String METADATA_CACHE_SIZE = "metadata.cache.size";
+private final static String METADATA_CACHE_SIZE_DEFAULT = "1000";
+private final static String METADATA_CACHE_REFRESH = "metadata.cache.refresh";
+private final static String METADATA_CACHE_REFRESH_DEFAULT = "60";  // 60 sec
+
+private final static String METADATA_FILE = "metadata";
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoMetadataCache");
+
+private static MrGeoMetadataCache instance = null;
+
+private final ProviderProperties providerProperties;
+private final LoadingCache<String, Entry> cache;
+private final ExecutorService refresher;
+private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+private final MrGeoMetrics metrics;
+
+interface Listener
+{
+  // called (from the refresh thread) when a pyramid's metadata has changed in storage
+  void metadataChanged(String name);
+}
+
+private static class Entry
+{
+  final MrsPyramidMetadata metadata;
+  final long stamp;
+
+  // derived from the metadata, built the first time it's asked for
+  volatile ImageLayout layout = null;
+
+  Entry(MrsPyramidMetadata metadata, long stamp)
+  {
+    this.metadata = metadata;
+    this.stamp = stamp;
+  }
+}
+
+static synchronized MrGeoMetadataCache getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoMetadataCache(config);
+  }
+
+  return instance;
+}
+
+private MrGeoMetadataCache(Properties config)
+{
+  providerProperties = new ProviderProperties(config.getProperty(MrGeoReader.USERNAME, ""), config.getProperty(MrGeoReader.USER_ROLES, ""));
+
+  long size = Long.parseLong(config.getProperty(METADATA_CACHE_SIZE, METADATA_CACHE_SIZE_DEFAULT));
+  long refresh = Long.parseLong(config.getProperty(METADATA_CACHE_REFRESH, METADATA_CACHE_REFRESH_DEFAULT));
+
+  log.info("Metadata cache: size: " + size + " refresh: " + refresh + "s");
+
+  metrics = MrGeoMetrics.getInstance(config);
+
+  refresher = Executors.newSingleThreadExecutor(new MrGeoThreadFactory("mrgeo-metadata"));
+
+  cache = CacheBuilder.newBuilder()
+      .maximumSize(size)
+      .refreshAfterWrite(refresh, TimeUnit.SECONDS)
+      .build(new CacheLoader<String, Entry>()
+      {
+        @Override
+        public Entry load(String name) throws Exception
+        {
+          long stamp = modificationTime(name);
+          return new Entry(provider(name).getMetadataReader().read(), stamp);
+        }
+
+        @Override
+        public ListenableFuture<Entry> reload(final String name, final Entry old)
+        {
+          // refresh off the request thread, readers keep getting the old value until it's done
+          ListenableFutureTask<Entry> task = ListenableFutureTask.create(new Callable<Entry>()
+          {
+            @Override
+            public Entry call() throws Exception
+            {
+              return refresh(name, old);
+            }
+          });
+
+          refresher.execute(task);
+          return task;
+        }
+      });
+}
+
+MrsPyramidMetadata get(String name) throws IOException
+{
+  return entry(name).metadata;
+}
+
+/**
+ * The JAI layout of the native resolution image, built from the metadata (tile type, band count
+ * and tile size), without reading any tiles.  Callers must not modify the layout.
+ */
+ImageLayout getImageLayout(String name) throws IOException
+{
+  Entry entry = entry(name);
+
+  if (entry.layout == null)
+  {
+    MrsPyramidMetadata meta = entry.metadata;
+    LongRectangle bounds = meta.getPixelBounds(meta.getMaxZoomLevel());
+
+    ImageLayout layout = new ImageLayout();
+    layout.setMinX(0);
+    layout.setMinY(0);
+    layout.setWidth((int) bounds.getWidth());
+    layout.setHeight((int) bounds.getHeight());
+
+    // tiles line up with the MrGeo tiles
+    layout.setTileGridXOffset(0);
+    layout.setTileGridYOffset(0);
+
+    layout.setTileWidth(meta.getTilesize());
+    layout.setTileHeight(meta.getTilesize());
+
+    SampleModel sm = MrGeoTiledImage.createSampleModel(meta);
+    layout.setSampleModel(sm);
+    layout.setColorModel(MrGeoTiledImage.createColorModel(sm));
+
+    entry.layout = layout;
+  }
+
+  return entry.layout;
+}
+
+private Entry entry(String name) throws IOException
+{
+  long start = System.nanoTime();
+  try
+  {
+    return cache.get(name);
+  }
+  catch (ExecutionException | UncheckedExecutionException e)
+  {
+    if (e.getCause() instanceof IOException)
+    {
+      throw (IOException) e.getCause();
+    }
+    throw new IOException("Error reading metadata for " + name, e.getCause());
+  }
+  finally
+  {
+    metrics.metadataLookup(System.nanoTime() - start);
+  }
+}
+
+void addListener(Listener listener)
+{
+  listeners.add(listener);
+}
+
+void invalidate(String name)
+{
+  cache.invalidate(name);
+}
+
+void invalidateAll()
+{
+  cache.invalidateAll();
+}
+
+/**
+ * Drop the cached metadata for a pyramid that is known to have changed (i.e. the layer updater
+ * saw it being rebuilt), and tell the listeners, without waiting for the next refresh.
+ */
+void changed(String name)
+{
+  cache.invalidate(name);
+  fireChanged(name);
+}
+
+private void fireChanged(String name)
+{
+  for (Listener listener : listeners)
+  {
+    listener.metadataChanged(name);
+  }
+}
+
+private Entry refresh(String name, Entry old) throws IOException
+{
+  long stamp = modificationTime(name);
+  if (stamp != 0 && stamp == old.stamp)
+  {
+    return old;
+  }
+
+  log.fine("Reloading metadata for: " + name + " (stamp: " + old.stamp + " -> " + stamp + ")");
+
+  Entry entry = new Entry(provider(name).getMetadataReader().reload(), stamp);
+
+  if (old.stamp != 0)
+  {
+    fireChanged(name);
+  }
+
+  return entry;
+}
+
+private MrsImageDataProvider provider(String name) throws IOException
+{
+  return DataProviderFactory.getMrsImageDataProvider(name, DataProviderFactory.AccessMode.READ, providerProperties);
+}
+
+// Modification time of the pyramid's metadata file, or 0 if it can't be determined (i.e. the
+// image isn't stored in a hadoop filesystem)
+static long modificationTime(String name)
+{
+  try
+  {
+    String base = MrGeoProperties.getInstance().getProperty(MrGeoConstants.MRGEO_HDFS_IMAGE, "/mrgeo/images");
+    Path path = new Path(new Path(base, name), METADATA_FILE);
+
+    FileSystem fs = HadoopFileUtils.getFileSystem(path);
+    return fs.getFileStatus(path).getModificationTime();
+  }
+  catch (Exception e)
+  {
+    log.finest("Can't get modification time for " + name + ": " + e.getMessage());
+  }
+
+  return 0;
+}
+
+}
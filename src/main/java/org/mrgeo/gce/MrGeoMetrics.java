@@ -0,0 +1,470 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.geotools.util.logging.Logging;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide counters and histograms for the read path (reads, latency, tiles, bytes, pixels,
+ * zoom levels), metadata lookups and layer updates, published as a JMX MBean
+ * (org.mrgeo.gce:type=Metrics).  Everything is lock-free, so recording is cheap enough to always
+ * be on.
+ */
+class MrGeoMetrics implements MrGeoMetricsMBean
+{
+private final static String METRICS_JMX = "metrics.jmx";
+private final static String METRICS_LAYERS = "metrics.layers";
+private final static String METRICS_LAYERS_DEFAULT = "1000";
+
+private final static String OBJECT_NAME = "org.mrgeo.gce:type=Metrics";
+
+// histogram bucket upper bounds, anything bigger goes in an overflow bucket
+private final static long[] READ_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};  // ms
+private final static long[] TILE_BUCKETS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};  // tiles
+private final static long[] METADATA_BUCKETS = {10, 100, 1000, 10000, 100000, 1000000};  // us
+private final static long[] UPDATE_BUCKETS = {100, 1000, 10000, 60000, 300000, 600000};  // ms
+
+private final static int MAX_ZOOM = 32;
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoMetrics");
+
+private static MrGeoMetrics instance = null;
+
+private final Properties config;
+private ObjectName name = null;
+
+private final Histogram readTime = new Histogram(READ_BUCKETS, "ms");
+private final Histogram tilesPerRead = new Histogram(TILE_BUCKETS, "");
+private final Histogram metadataTime = new Histogram(METADATA_BUCKETS, "us");
+private final Histogram updateTime = new Histogram(UPDATE_BUCKETS, "ms");
+
+private final AtomicLong readErrors = new AtomicLong();
+private final AtomicLong readsRejected = new AtomicLong();
+private final AtomicLong bytesRead = new AtomicLong();
+private final AtomicLong pixelsReturned = new AtomicLong();
+private final AtomicLongArray zooms = new AtomicLongArray(MAX_ZOOM + 1);
+// the least recently read layers are dropped past the limit
+private final LoadingCache<String, AtomicLong> layerReads;
+
+private volatile String lastUpdate = "none";
+
+private static class Histogram
+{
+  final long[] bounds;
+  final String units;
+
+  final AtomicLongArray counts;
+  final AtomicLong count = new AtomicLong();
+  final AtomicLong total = new AtomicLong();
+  final AtomicLong max = new AtomicLong();
+
+  Histogram(long[] bounds, String units)
+  {
+    this.bounds = bounds;
+    this.units = units;
+    counts = new AtomicLongArray(bounds.length + 1);
+  }
+
+  void record(long value)
+  {
+    int bucket = 0;
+    while (bucket < bounds.length && value > bounds[bucket])
+    {
+      bucket++;
+    }
+
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    total.addAndGet(value);
+
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value))
+    {
+      current = max.get();
+    }
+  }
+
+  double mean()
+  {
+    long n = count.get();
+    return n == 0 ? 0 : (double) total.get() / n;
+  }
+
+  String[] snapshot()
+  {
+    String[] buckets = new String[counts.length()];
+    for (int i = 0; i < bounds.length; i++)
+    {
+      buckets[i] = "<= " + bounds[i] + units + ": " + counts.get(i);
+    }
+    buckets[bounds.length] = "> " + bounds[bounds.length - 1] + units + ": " + counts.get(bounds.length);
+
+    return buckets;
+  }
+
+  void reset()
+  {
+    for (int i = 0; i < counts.length(); i++)
+    {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    total.set(0);
+    max.set(0);
+  }
+}
+
+static synchronized MrGeoMetrics getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoMetrics(config);
+  }
+
+  return instance;
+}
+
+private MrGeoMetrics(Properties config)
+{
+  this.config = config;
+
+  layerReads = CacheBuilder.newBuilder()
+      .maximumSize(Long.parseLong(config.getProperty(METRICS_LAYERS, METRICS_LAYERS_DEFAULT)))
+      .build(new CacheLoader<String, AtomicLong>()
+      {
+        @Override
+        public AtomicLong load(String layer)
+        {
+          return new AtomicLong();
+        }
+      });
+
+  if (Boolean.parseBoolean(config.getProperty(METRICS_JMX, "true")))
+  {
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName on = new ObjectName(OBJECT_NAME);
+
+      // left over from a previous deploy of the web application
+      if (server.isRegistered(on))
+      {
+        server.unregisterMBean(on);
+      }
+
+      server.registerMBean(this, on);
+      name = on;
+
+      log.info("Registered MrGeo metrics: " + OBJECT_NAME);
+    }
+    catch (Exception e)
+    {
+      log.log(Level.WARNING, "Can't register the MrGeo metrics MBean", e);
+    }
+  }
+}
+
+// Called when the web application stops
+static synchronized void shutdown()
+{
+  if (instance != null && instance.name != null)
+  {
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(instance.name);
+    }
+    catch (Exception e)
+    {
+      log.log(Level.WARNING, "Can't unregister the MrGeo metrics MBean", e);
+    }
+  }
+
+  instance = null;
+}
+
+// layer is null if the read wasn't for a known layer, it isn't counted per layer
+void read(String layer, long nanos, boolean ok)
+{
+  readTime.record(nanos / 1000000);
+  if (!ok)
+  {
+    readErrors.incrementAndGet();
+  }
+
+  if (layer != null)
+  {
+    layerReads.getUnchecked(layer).incrementAndGet();
+  }
+}
+
+void readDetail(int zoom, long tiles, long pixels)
+{
+  if (zoom >= 0 && zoom <= MAX_ZOOM)
+  {
+    zooms.incrementAndGet(zoom);
+  }
+  tilesPerRead.record(tiles);
+  pixelsReturned.addAndGet(pixels);
+}
+
+void readRejected()
+{
+  readsRejected.incrementAndGet();
+}
+
+void bytesRead(long bytes)
+{
+  bytesRead.addAndGet(bytes);
+}
+
+void metadataLookup(long nanos)
+{
+  metadataTime.record(nanos / 1000);
+}
+
+void layerUpdate(MrGeoLayerUpdater.Scan scan)
+{
+  updateTime.record(scan.duration);
+  lastUpdate = scan.toString();
+}
+
+@Override
+public long getReadCount()
+{
+  return readTime.count.get();
+}
+
+@Override
+public long getReadErrorCount()
+{
+  return readErrors.get();
+}
+
+@Override
+public long getReadsRejected()
+{
+  return readsRejected.get();
+}
+
+@Override
+public long getReadMemoryInUse()
+{
+  return MrGeoReadBudget.getInstance(config).getInUse();
+}
+
+@Override
+public double getReadTimeMean()
+{
+  return readTime.mean();
+}
+
+@Override
+public long getReadTimeMax()
+{
+  return readTime.max.get();
+}
+
+@Override
+public String[] getReadTimeHistogram()
+{
+  return readTime.snapshot();
+}
+
+// most read first
+@Override
+public String[] getLayerReadCounts()
+{
+  List<Map.Entry<String, AtomicLong>> entries = new ArrayList<>(layerReads.asMap().entrySet());
+  Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>()
+  {
+    @Override
+    public int compare(Map.Entry<String, AtomicLong> a, Map.Entry<String, AtomicLong> b)
+    {
+      return Long.compare(b.getValue().get(), a.getValue().get());
+    }
+  });
+
+  String[] counts = new String[entries.size()];
+  for (int i = 0; i < counts.length; i++)
+  {
+    counts[i] = entries.get(i).getKey() + ": " + entries.get(i).getValue().get();
+  }
+
+  return counts;
+}
+
+@Override
+public String[] getZoomLevelCounts()
+{
+  List<String> counts = new ArrayList<>();
+  for (int z = 0; z <= MAX_ZOOM; z++)
+  {
+    long count = zooms.get(z);
+    if (count > 0)
+    {
+      counts.add(z + ": " + count);
+    }
+  }
+
+  return counts.toArray(new String[counts.size()]);
+}
+
+@Override
+public double getTilesPerReadMean()
+{
+  return tilesPerRead.mean();
+}
+
+@Override
+public String[] getTilesPerReadHistogram()
+{
+  return tilesPerRead.snapshot();
+}
+
+@Override
+public long getBytesRead()
+{
+  return bytesRead.get();
+}
+
+@Override
+public long getPixelsReturned()
+{
+  return pixelsReturned.get();
+}
+
+@Override
+public long getMetadataLookupCount()
+{
+  return metadataTime.count.get();
+}
+
+// ms, to match the other times
+@Override
+public double getMetadataTimeMean()
+{
+  return metadataTime.mean() / 1000.0;
+}
+
+@Override
+public String[] getMetadataTimeHistogram()
+{
+  return metadataTime.snapshot();
+}
+
+@Override
+public long getTileCacheHits()
+{
+  return MrGeoTileCache.getInstance(config).getHitCount();
+}
+
+@Override
+public long getTileCacheMisses()
+{
+  return MrGeoTileCache.getInstance(config).getMissCount();
+}
+
+@Override
+public long getTileCacheSize()
+{
+  return MrGeoTileCache.getInstance(config).getSize();
+}
+
+@Override
+public long getMissingTilesSkipped()
+{
+  return MrGeoTileIndex.getInstance(config).getSkippedCount();
+}
+
+@Override
+public long getPrefetchedTiles()
+{
+  return MrGeoPrefetcher.getInstance(config).getPrefetchedCount();
+}
+
+@Override
+public long getPrefetchBackoffs()
+{
+  return MrGeoPrefetcher.getInstance(config).getBackoffCount();
+}
+
+@Override
+public long getLayerUpdateCount()
+{
+  return updateTime.count.get();
+}
+
+@Override
+public double getLayerUpdateTimeMean()
+{
+  return updateTime.mean();
+}
+
+@Override
+public String getLastLayerUpdate()
+{
+  return lastUpdate;
+}
+
+@Override
+public void triggerLayerUpdate()
+{
+  MrGeoLayerUpdater updater = MrGeoFormatFactorySpi.getUpdater();
+  if (updater != null)
+  {
+    updater.trigger();
+  }
+}
+
+@Override
+public void reset()
+{
+  readTime.reset();
+  tilesPerRead.reset();
+  metadataTime.reset();
+  updateTime.reset();
+
+  readErrors.set(0);
+  readsRejected.set(0);
+  bytesRead.set(0);
+  pixelsReturned.set(0);
+  for (int z = 0; z <= MAX_ZOOM; z++)
+  {
+    zooms.set(z, 0);
+  }
+  layerReads.invalidateAll();
+}
+
+}
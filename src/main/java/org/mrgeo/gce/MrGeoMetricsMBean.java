@@ -0,0 +1,60 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+/**
+ * JMX view of the MrGeoMetrics.  Histograms are returned as "bucket: count" strings, so they can be
+ * read from any JMX client (i.e. jconsole) without custom types.
+ */
+public interface MrGeoMetricsMBean
+{
+long getReadCount();
+long getReadErrorCount();
+long getReadsRejected();
+long getReadMemoryInUse();
+double getReadTimeMean();
+long getReadTimeMax();
+String[] getReadTimeHistogram();
+
+String[] getLayerReadCounts();
+String[] getZoomLevelCounts();
+
+double getTilesPerReadMean();
+String[] getTilesPerReadHistogram();
+long getBytesRead();
+long getPixelsReturned();
+
+long getMetadataLookupCount();
+double getMetadataTimeMean();
+String[] getMetadataTimeHistogram();
+
+long getTileCacheHits();
+long getTileCacheMisses();
+long getTileCacheSize();
+long getMissingTilesSkipped();
+
+long getPrefetchedTiles();
+long getPrefetchBackoffs();
+
+long getLayerUpdateCount();
+double getLayerUpdateTimeMean();
+String getLastLayerUpdate();
+
+void triggerLayerUpdate();
+void reset();
+}
@@ -0,0 +1,50 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.opengis.parameter.GeneralParameterValue;
+
+import java.io.IOException;
+
+/**
+ * Reads several MrGeo coverages over the same area in one call.  The readers made by MrGeoFormat
+ * implement it, so code holding one (i.e. a WPS process or a rendering extension drawing a layer
+ * group) can use it with an instanceof check:
+ *
+ *   GridCoverage2DReader reader = format.getReader(source);
+ *   if (reader instanceof MrGeoMultiCoverageReader)
+ *   {
+ *     coverages = ((MrGeoMultiCoverageReader) reader).read(names, parameters);
+ *   }
+ *
+ * GeoServer's own WMS and WCS read one coverage at a time, and never call this.
+ */
+public interface MrGeoMultiCoverageReader
+{
+/**
+ * Read several coverages with the same parameters (i.e. the layers of a layer group).  Layers
+ * sharing a tile grid are read together, in one I/O schedule, when there's an envelope and the
+ * output is built in memory.  A read covering more than read.tiled.threshold tiles returns tiled
+ * images whose tiles are fetched on demand, so those layers (and web mercator reads) are read one
+ * at a time, the same as read(name, parameters).
+ *
+ * @return the coverages, in the same order as the names
+ */
+GridCoverage2D[] read(String[] names, GeneralParameterValue[] parameters) throws IOException;
+}
@@ -0,0 +1,314 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.geotools.util.logging.Logging;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.mrgeo.utils.tms.TileBounds;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Guesses which tiles the next reads of a layer will want, from the reads it has just seen, and
+ * loads them into the tile cache in the background.  Map clients pan (the next read is next to
+ * this one, usually in the same direction as the last move) and zoom (the next read is the same
+ * area, one zoom level in or out).  So, for each read:
+ *
+ *  - panning:  the strip of tiles just past the read, in the direction of travel
+ *  - zooming:  the same area at the next zoom level in the same direction, plus the ring around it
+ *  - otherwise:  the ring of tiles around the read, and the levels above and below
+ *
+ * Prefetching never competes with user requests:  a prediction is dropped, and a prefetch in
+ * progress stops, whenever the request I/O pool is busy.
+ */
+class MrGeoPrefetcher
+{
+private final static String PREFETCH_ENABLE = "prefetch.enable";
+private final static String PREFETCH_RING = "prefetch.ring";
+private final static String PREFETCH_RING_DEFAULT = "1";  // tiles
+private final static String PREFETCH_TILES = "prefetch.tiles";
+private final static String PREFETCH_TILES_DEFAULT = "32";  // per read
+private final static String PREFETCH_THREADS = "prefetch.threads";
+private final static String PREFETCH_THREADS_DEFAULT = "2";
+
+// pending predictions, the oldest are dropped first (they're the least likely to still be useful)
+private final static int QUEUE_SIZE = 64;
+
+// how long a layer's last read is used to spot panning and zooming
+private final static long HISTORY_SECONDS = 30;
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoPrefetcher");
+
+private static MrGeoPrefetcher instance = null;
+
+private final boolean enabled;
+private final int ring;
+private final int maxTiles;
+
+private final ThreadPoolExecutor executor;
+private final Cache<String, Read> history;
+
+private final MrGeoTileCache tiles;
+private final MrGeoTileFetcher fetcher;
+
+private final AtomicLong prefetched = new AtomicLong();
+private final AtomicLong backoffs = new AtomicLong();
+
+private static class Read
+{
+  final int zoom;
+  final TileBounds tb;
+
+  Read(int zoom, TileBounds tb)
+  {
+    this.zoom = zoom;
+    this.tb = tb;
+  }
+}
+
+static synchronized MrGeoPrefetcher getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoPrefetcher(config);
+  }
+
+  return instance;
+}
+
+private MrGeoPrefetcher(Properties config)
+{
+  tiles = MrGeoTileCache.getInstance(config);
+  fetcher = MrGeoTileFetcher.getInstance(config);
+
+  // nothing to prefetch into without a cache
+  enabled = Boolean.parseBoolean(config.getProperty(PREFETCH_ENABLE, "false")) && tiles.isEnabled();
+  ring = Math.max(1, Integer.parseInt(config.getProperty(PREFETCH_RING, PREFETCH_RING_DEFAULT)));
+  maxTiles = Integer.parseInt(config.getProperty(PREFETCH_TILES, PREFETCH_TILES_DEFAULT));
+
+  int threads = Math.max(1, Integer.parseInt(config.getProperty(PREFETCH_THREADS, PREFETCH_THREADS_DEFAULT)));
+  executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+      new MrGeoThreadFactory("mrgeo-prefetch", Thread.MIN_PRIORITY), new ThreadPoolExecutor.DiscardOldestPolicy());
+  executor.allowCoreThreadTimeOut(true);
+
+  history = CacheBuilder.newBuilder().maximumSize(1000).expireAfterWrite(HISTORY_SECONDS, TimeUnit.SECONDS).build();
+
+  if (enabled)
+  {
+    log.info("Prefetch: ring: " + ring + " tiles: " + maxTiles + " threads: " + threads);
+  }
+}
+
+/**
+ * Tell the prefetcher about a read of the tiles in tb, once the read has its own tiles (so the
+ * prefetches can't get ahead of them in the I/O pool).  Returns right away.
+ */
+void read(final String layer, final int zoom, TileBounds tb, MrsPyramidMetadata meta)
+{
+  if (!enabled)
+  {
+    return;
+  }
+
+  Read last = history.getIfPresent(layer);
+  history.put(layer, new Read(zoom, tb));
+
+  if (fetcher.isBusy())
+  {
+    backoffs.incrementAndGet();
+    return;
+  }
+
+  final List<long[]> ids = predict(layer, last, zoom, tb, meta);
+  if (!ids.isEmpty())
+  {
+    executor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        prefetch(layer, ids);
+      }
+    });
+  }
+}
+
+// {zoom, tx, ty} of the tiles most likely to be read next, most likely first
+private List<long[]> predict(String layer, Read last, int zoom, TileBounds tb, MrsPyramidMetadata meta)
+{
+  List<long[]> ids = new ArrayList<>();
+
+  int minZoom = meta.hasPyramids() ? 1 : meta.getMaxZoomLevel();
+  int maxZoom = meta.getMaxZoomLevel();
+
+  if (last != null && last.zoom == zoom)
+  {
+    // panning, keep going the same way (or just look around, if we haven't moved)
+    int dx = Long.signum(tb.w - last.tb.w);
+    int dy = Long.signum(tb.n - last.tb.n);
+
+    ring(ids, layer, meta, zoom, tb, dx, dy);
+  }
+  else if (last != null && Math.abs(last.zoom - zoom) == 1)
+  {
+    // zooming, keep going the same way
+    int next = zoom + (zoom - last.zoom);
+    if (next >= minZoom && next <= maxZoom)
+    {
+      level(ids, layer, meta, zoom, next, tb);
+    }
+    ring(ids, layer, meta, zoom, tb, 0, 0);
+  }
+  else
+  {
+    ring(ids, layer, meta, zoom, tb, 0, 0);
+    if (zoom + 1 <= maxZoom)
+    {
+      level(ids, layer, meta, zoom, zoom + 1, tb);
+    }
+    if (zoom - 1 >= minZoom)
+    {
+      level(ids, layer, meta, zoom, zoom - 1, tb);
+    }
+  }
+
+  return ids;
+}
+
+// The tiles around tb, out to the ring size.  If dx or dy is set, only the ones on that side.
+private void ring(List<long[]> ids, String layer, MrsPyramidMetadata meta, int zoom, TileBounds tb, int dx, int dy)
+{
+  TileBounds valid = TMSUtils.boundsToTile(meta.getBounds(), zoom, meta.getTilesize());
+  long w = tb.w, s = tb.s, e = tb.e, n = tb.n;
+
+  for (long ty = Math.min(n + ring, valid.n); ty >= Math.max(s - ring, valid.s); ty--)
+  {
+    for (long tx = Math.max(w - ring, valid.w); tx <= Math.min(e + ring, valid.e); tx++)
+    {
+      boolean inside = tx >= w && tx <= e && ty >= s && ty <= n;
+      boolean ahead = (dx == 0 && dy == 0) ||
+          (dx > 0 && tx > e) || (dx < 0 && tx < w) || (dy > 0 && ty > n) || (dy < 0 && ty < s);
+
+      if (!inside && ahead && !add(ids, layer, zoom, tx, ty))
+      {
+        return;
+      }
+    }
+  }
+}
+
+// The tiles covering the same area as tb (at zoom), at another zoom level
+private void level(List<long[]> ids, String layer, MrsPyramidMetadata meta, int zoom, int to, TileBounds tb)
+{
+  TileBounds valid = TMSUtils.boundsToTile(meta.getBounds(), to, meta.getTilesize());
+
+  long w, s, e, n;
+  if (to > zoom)
+  {
+    w = tb.w * 2;
+    s = tb.s * 2;
+    e = tb.e * 2 + 1;
+    n = tb.n * 2 + 1;
+  }
+  else
+  {
+    w = tb.w / 2;
+    s = tb.s / 2;
+    e = tb.e / 2;
+    n = tb.n / 2;
+  }
+
+  for (long ty = Math.min(n, valid.n); ty >= Math.max(s, valid.s); ty--)
+  {
+    for (long tx = Math.max(w, valid.w); tx <= Math.min(e, valid.e); tx++)
+    {
+      if (!add(ids, layer, to, tx, ty))
+      {
+        return;
+      }
+    }
+  }
+}
+
+// false when there are enough tiles
+private boolean add(List<long[]> ids, String layer, int zoom, long tx, long ty)
+{
+  if (ids.size() >= maxTiles)
+  {
+    return false;
+  }
+
+  if (!tiles.contains(layer, zoom, tx, ty))
+  {
+    ids.add(new long[]{zoom, tx, ty});
+  }
+
+  return true;
+}
+
+private void prefetch(String layer, List<long[]> ids)
+{
+  try
+  {
+    for (long[] id : ids)
+    {
+      // back off, user requests come first
+      if (fetcher.isBusy())
+      {
+        backoffs.incrementAndGet();
+        return;
+      }
+
+      int zoom = (int) id[0];
+      if (!tiles.contains(layer, zoom, id[1], id[2]))
+      {
+        fetcher.get(layer, zoom, id[1], id[2]);
+
+        prefetched.incrementAndGet();
+      }
+    }
+  }
+  catch (IOException e)
+  {
+    log.log(Level.FINE, "Error prefetching tiles for " + layer, e);
+  }
+}
+
+long getPrefetchedCount()
+{
+  return prefetched.get();
+}
+
+long getBackoffCount()
+{
+  return backoffs.get();
+}
+
+}
@@ -0,0 +1,367 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import org.mrgeo.data.raster.MrGeoRaster;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Copies pixels out of MrGeoRasters straight into the banks of a banded java raster, one loop per
+ * data type, so reads don't go through the generic (double/int boxing) getSample/setSample paths
+ * or through intermediate merged/clipped rasters.
+ *
+ * The destination rasters must use a BandedSampleModel (one bank per band, no band offsets), which
+ * is what MrGeoTiledImage.createSampleModel() makes.  The copies can take a band selection (dst
+ * band b comes from src band select[b]), so unused bands are never touched; null selects every
+ * band, in order.
+ */
+class MrGeoRasterCopier
+{
+private MrGeoRasterCopier()
+{
+}
+
+static BandedSampleModel checkSampleModel(WritableRaster dst)
+{
+  if (!(dst.getSampleModel() instanceof BandedSampleModel))
+  {
+    throw new IllegalArgumentException("Destination raster must have a BandedSampleModel");
+  }
+
+  return (BandedSampleModel) dst.getSampleModel();
+}
+
+/**
+ * Copy a w x h block from src (at sx, sy) to dst (at dx, dy).  dx and dy are relative to the
+ * raster's data, not its (possibly translated) minX/minY.
+ */
+static void copy(MrGeoRaster src, int sx, int sy, int w, int h, WritableRaster dst, int dx, int dy)
+{
+  copy(src, sx, sy, w, h, dst, dx, dy, null);
+}
+
+static void copy(MrGeoRaster src, int sx, int sy, int w, int h, WritableRaster dst, int dx, int dy, int[] select)
+{
+  final BandedSampleModel sm = checkSampleModel(dst);
+  final int stride = sm.getScanlineStride();
+  final DataBuffer db = dst.getDataBuffer();
+  final int bands = sm.getNumBands();
+
+  switch (db.getDataType())
+  {
+  case DataBuffer.TYPE_BYTE:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final byte[] data = ((DataBufferByte) db).getData(b);
+      for (int y = 0; y < h; y++)
+      {
+        int ndx = (dy + y) * stride + dx;
+        for (int x = 0; x < w; x++)
+        {
+          data[ndx++] = src.getPixelByte(sx + x, sy + y, sb);
+        }
+      }
+    }
+    break;
+  case DataBuffer.TYPE_SHORT:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final short[] data = ((DataBufferShort) db).getData(b);
+      for (int y = 0; y < h; y++)
+      {
+        int ndx = (dy + y) * stride + dx;
+        for (int x = 0; x < w; x++)
+        {
+          data[ndx++] = src.getPixelShort(sx + x, sy + y, sb);
+        }
+      }
+    }
+    break;
+  case DataBuffer.TYPE_USHORT:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+
+      // same bits, java just calls it unsigned
+      final short[] data = ((DataBufferUShort) db).getData(b);
+      for (int y = 0; y < h; y++)
+      {
+        int ndx = (dy + y) * stride + dx;
+        for (int x = 0; x < w; x++)
+        {
+          data[ndx++] = src.getPixelShort(sx + x, sy + y, sb);
+        }
+      }
+    }
+    break;
+  case DataBuffer.TYPE_INT:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final int[] data = ((DataBufferInt) db).getData(b);
+      for (int y = 0; y < h; y++)
+      {
+        int ndx = (dy + y) * stride + dx;
+        for (int x = 0; x < w; x++)
+        {
+          data[ndx++] = src.getPixelInt(sx + x, sy + y, sb);
+        }
+      }
+    }
+    break;
+  case DataBuffer.TYPE_FLOAT:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final float[] data = ((DataBufferFloat) db).getData(b);
+      for (int y = 0; y < h; y++)
+      {
+        int ndx = (dy + y) * stride + dx;
+        for (int x = 0; x < w; x++)
+        {
+          data[ndx++] = src.getPixelFloat(sx + x, sy + y, sb);
+        }
+      }
+    }
+    break;
+  case DataBuffer.TYPE_DOUBLE:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final double[] data = ((DataBufferDouble) db).getData(b);
+      for (int y = 0; y < h; y++)
+      {
+        int ndx = (dy + y) * stride + dx;
+        for (int x = 0; x < w; x++)
+        {
+          data[ndx++] = src.getPixelDouble(sx + x, sy + y, sb);
+        }
+      }
+    }
+    break;
+  default:
+    throw new IllegalArgumentException("Unsupported data type: " + db.getDataType());
+  }
+}
+
+/**
+ * Copy pixels through row and column lookup tables: dst pixel (i, j) gets src pixel
+ * (cols[i] - sx, rows[j] - sy), for i in [i0, i1) and j in [j0, j1).  Used for resampling with a
+ * separable (nearest neighbor) mapping.
+ */
+static void copyMapped(MrGeoRaster src, int sx, int sy, int[] cols, int i0, int i1, int[] rows, int j0, int j1,
+    WritableRaster dst)
+{
+  copyMapped(src, sx, sy, cols, i0, i1, rows, j0, j1, dst, null);
+}
+
+static void copyMapped(MrGeoRaster src, int sx, int sy, int[] cols, int i0, int i1, int[] rows, int j0, int j1,
+    WritableRaster dst, int[] select)
+{
+  final BandedSampleModel sm = checkSampleModel(dst);
+  final int stride = sm.getScanlineStride();
+  final DataBuffer db = dst.getDataBuffer();
+  final int bands = sm.getNumBands();
+
+  switch (db.getDataType())
+  {
+  case DataBuffer.TYPE_BYTE:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final byte[] data = ((DataBufferByte) db).getData(b);
+      for (int j = j0; j < j1; j++)
+      {
+        final int y = rows[j] - sy;
+        int ndx = j * stride + i0;
+        for (int i = i0; i < i1; i++)
+        {
+          data[ndx++] = src.getPixelByte(cols[i] - sx, y, sb);
+        }
+      }
+    }
+    break;
+  case DataBuffer.TYPE_SHORT:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final short[] data = ((DataBufferShort) db).getData(b);
+      for (int j = j0; j < j1; j++)
+      {
+        final int y = rows[j] - sy;
+        int ndx = j * stride + i0;
+        for (int i = i0; i < i1; i++)
+        {
+          data[ndx++] = src.getPixelShort(cols[i] - sx, y, sb);
+        }
+      }
+    }
+    break;
+  case DataBuffer.TYPE_USHORT:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final short[] data = ((DataBufferUShort) db).getData(b);
+      for (int j = j0; j < j1; j++)
+      {
+        final int y = rows[j] - sy;
+        int ndx = j * stride + i0;
+        for (int i = i0; i < i1; i++)
+        {
+          data[ndx++] = src.getPixelShort(cols[i] - sx, y, sb);
+        }
+      }
+    }
+    break;
+  case DataBuffer.TYPE_INT:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final int[] data = ((DataBufferInt) db).getData(b);
+      for (int j = j0; j < j1; j++)
+      {
+        final int y = rows[j] - sy;
+        int ndx = j * stride + i0;
+        for (int i = i0; i < i1; i++)
+        {
+          data[ndx++] = src.getPixelInt(cols[i] - sx, y, sb);
+        }
+      }
+    }
+    break;
+  case DataBuffer.TYPE_FLOAT:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final float[] data = ((DataBufferFloat) db).getData(b);
+      for (int j = j0; j < j1; j++)
+      {
+        final int y = rows[j] - sy;
+        int ndx = j * stride + i0;
+        for (int i = i0; i < i1; i++)
+        {
+          data[ndx++] = src.getPixelFloat(cols[i] - sx, y, sb);
+        }
+      }
+    }
+    break;
+  case DataBuffer.TYPE_DOUBLE:
+    for (int b = 0; b < bands; b++)
+    {
+      final int sb = band(select, b);
+      final double[] data = ((DataBufferDouble) db).getData(b);
+      for (int j = j0; j < j1; j++)
+      {
+        final int y = rows[j] - sy;
+        int ndx = j * stride + i0;
+        for (int i = i0; i < i1; i++)
+        {
+          data[ndx++] = src.getPixelDouble(cols[i] - sx, y, sb);
+        }
+      }
+    }
+    break;
+  default:
+    throw new IllegalArgumentException("Unsupported data type: " + db.getDataType());
+  }
+}
+
+// the src band for dst band b
+private static int band(int[] select, int b)
+{
+  return select == null ? b : select[b];
+}
+
+/**
+ * The values (i.e. nodata) for the selected bands
+ */
+static double[] select(double[] values, int[] select)
+{
+  if (select == null)
+  {
+    return values;
+  }
+
+  double[] selected = new double[select.length];
+  for (int b = 0; b < select.length; b++)
+  {
+    selected[b] = values[select[b]];
+  }
+
+  return selected;
+}
+
+/**
+ * Fill a w x h block of dst (at dx, dy, relative to the raster's data) with a value per band
+ */
+static void fill(WritableRaster dst, int dx, int dy, int w, int h, double[] values)
+{
+  final BandedSampleModel sm = checkSampleModel(dst);
+  final int stride = sm.getScanlineStride();
+  final DataBuffer db = dst.getDataBuffer();
+  final int bands = sm.getNumBands();
+
+  for (int b = 0; b < bands; b++)
+  {
+    final double value = values[b];
+    for (int y = 0; y < h; y++)
+    {
+      int start = (dy + y) * stride + dx;
+      int end = start + w;
+
+      switch (db.getDataType())
+      {
+      case DataBuffer.TYPE_BYTE:
+        Arrays.fill(((DataBufferByte) db).getData(b), start, end, (byte) value);
+        break;
+      case DataBuffer.TYPE_SHORT:
+        Arrays.fill(((DataBufferShort) db).getData(b), start, end, (short) value);
+        break;
+      case DataBuffer.TYPE_USHORT:
+        Arrays.fill(((DataBufferUShort) db).getData(b), start, end, (short) value);
+        break;
+      case DataBuffer.TYPE_INT:
+        Arrays.fill(((DataBufferInt) db).getData(b), start, end, (int) value);
+        break;
+      case DataBuffer.TYPE_FLOAT:
+        Arrays.fill(((DataBufferFloat) db).getData(b), start, end, (float) value);
+        break;
+      case DataBuffer.TYPE_DOUBLE:
+        Arrays.fill(((DataBufferDouble) db).getData(b), start, end, value);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported data type: " + db.getDataType());
+      }
+    }
+  }
+}
+
+}
@@ -0,0 +1,223 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.geotools.util.logging.Logging;
+import org.mrgeo.data.raster.MrGeoRaster;
+
+import java.awt.Point;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.lang.reflect.Field;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Java rasters that view a MrGeoRaster's storage directly, instead of copying its pixels.
+ * A MrGeoRaster keeps its pixels, band after band, in one byte array (behind a header), so byte
+ * tiles are wrapped in a plain DataBufferByte, with a band offset per band.  Other types are
+ * stored big-endian, which no standard DataBuffer reads (and JAI's RasterAccessor only knows the
+ * standard ones), so they're always copied.
+ *
+ * The views share the tile's storage (often a tile in the tile cache).  Nothing here writes to
+ * them, and JAI operations never write to their sources, so the array is left as is; anything
+ * that wants to change the pixels has to copy the raster first (as the JAI ops do).
+ *
+ * MrGeoRaster doesn't expose its storage, so it's found by reflection, once, when the plugin
+ * starts.  The layout is checked then against MrGeoRaster's own accessors; if the fields are
+ * missing, or the layout doesn't line up (i.e. another MrGeo version), views are off and tiles
+ * are copied.
+ */
+class MrGeoRasterView
+{
+private final static String TILE_VIEW_ENABLE = "tile.view.enable";
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoRasterView");
+
+private static MrGeoRasterView instance = null;
+
+private static final Field DATA = field("data");
+private static final Field DATA_OFFSET = field("dataoffset");
+
+// the byte layout checked out, false if views are off
+private final boolean usable;
+
+static synchronized MrGeoRasterView getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoRasterView(config);
+  }
+
+  return instance;
+}
+
+private MrGeoRasterView(Properties config)
+{
+  if (!Boolean.parseBoolean(config.getProperty(TILE_VIEW_ENABLE, "true")))
+  {
+    usable = false;
+  }
+  else if (DATA == null || DATA_OFFSET == null)
+  {
+    log.warning("Can't find the MrGeoRaster storage, tiles will be copied (" + TILE_VIEW_ENABLE + ")");
+    usable = false;
+  }
+  else
+  {
+    usable = check();
+  }
+}
+
+// view a small byte test raster and make sure every sample matches
+private static boolean check()
+{
+  try
+  {
+    MrGeoRaster tile = MrGeoRaster.createEmptyRaster(5, 3, 2, DataBuffer.TYPE_BYTE);
+    for (int b = 0; b < 2; b++)
+    {
+      for (int y = 0; y < 3; y++)
+      {
+        for (int x = 0; x < 5; x++)
+        {
+          tile.setPixel(x, y, b, 1 + x + 5 * y + 15 * b);
+        }
+      }
+    }
+
+    if (matches(tile, null, view(tile, null, new Point(0, 0))) &&
+        matches(tile, new int[]{1}, view(tile, new int[]{1}, new Point(7, 9))))
+    {
+      return true;
+    }
+
+    log.warning("MrGeo tiles aren't laid out as expected, they will be copied");
+  }
+  catch (IllegalAccessException | RuntimeException e)
+  {
+    log.warning("Can't view MrGeo tiles directly (" + e + "), they will be copied");
+  }
+
+  return false;
+}
+
+/**
+ * A raster at location viewing the selected bands (null for all of them) of the tile,
+ * or null if the tile can't be viewed and has to be copied.
+ */
+Raster wrap(MrGeoRaster tile, int[] bands, Point location)
+{
+  if (!usable || tile.datatype() != DataBuffer.TYPE_BYTE)
+  {
+    return null;
+  }
+
+  try
+  {
+    return view(tile, bands, location);
+  }
+  catch (IllegalAccessException | RuntimeException e)
+  {
+    // the layout checked out at startup, this tile is odd (i.e. truncated), copy it
+    log.fine("Can't view MrGeo tile: " + e);
+    return null;
+  }
+}
+
+private static Raster view(MrGeoRaster tile, int[] bands, Point location) throws IllegalAccessException
+{
+  final byte[] data = (byte[]) DATA.get(tile);
+  final int offset = DATA_OFFSET.getInt(tile);
+
+  final int w = tile.width();
+  final int h = tile.height();
+
+  int count = bands == null ? tile.bands() : bands.length;
+  int[] banks = new int[count];
+  int[] offsets = new int[count];
+  for (int b = 0; b < count; b++)
+  {
+    // in elements (pixels), band after band
+    offsets[b] = (bands == null ? b : bands[b]) * w * h;
+  }
+
+  int elements = w * h * tile.bands();
+  if ((long) offset + elements > data.length)
+  {
+    throw new IllegalStateException("storage is too small");
+  }
+
+  DataBuffer db = new DataBufferByte(data, elements, offset);
+
+  SampleModel sm = new ComponentSampleModel(DataBuffer.TYPE_BYTE, w, h, 1, w, banks, offsets);
+  return Raster.createRaster(sm, db, location);
+}
+
+// compare a few pixels of every band with what MrGeoRaster says they are
+private static boolean matches(MrGeoRaster tile, int[] bands, Raster raster)
+{
+  final int w = tile.width();
+  final int h = tile.height();
+  int[][] points = {{0, 0}, {w - 1, 0}, {w / 2, h / 3}, {w / 3, h / 2}, {0, h - 1}, {w - 1, h - 1}};
+
+  for (int b = 0; b < raster.getNumBands(); b++)
+  {
+    int src = bands == null ? b : bands[b];
+    for (int[] p : points)
+    {
+      double expected = tile.getPixelDouble(p[0], p[1], src);
+      double actual = raster.getSampleDouble(raster.getMinX() + p[0], raster.getMinY() + p[1], b);
+      if (Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual))
+      {
+        return false;
+      }
+    }
+  }
+
+  return true;
+}
+
+private static Field field(String name)
+{
+  for (Class<?> c = MrGeoRaster.class; c != null; c = c.getSuperclass())
+  {
+    try
+    {
+      Field field = c.getDeclaredField(name);
+      field.setAccessible(true);
+      return field;
+    }
+    catch (NoSuchFieldException ignored)
+    {
+      // try the superclass
+    }
+    catch (SecurityException e)
+    {
+      log.fine("Can't access MrGeoRaster." + name + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  return null;
+}
+
+}
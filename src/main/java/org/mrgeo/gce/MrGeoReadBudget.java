@@ -0,0 +1,269 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.geotools.util.logging.Logging;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Admission control for reads.  Before a read does any I/O, its size (pixels, and bytes for the
+ * bands and data type read) is checked against the per-request limits, and a read that builds its
+ * output in memory has to get room for it from a process-wide memory budget.  Reads that don't
+ * fit wait (up to a point) for other reads to finish, so a burst of big requests queues up
+ * instead of running the JVM out of heap.
+ *
+ * An output lives on after the read, for as long as the rendering chain uses it, so its room is
+ * held until the output's data is garbage collected (see hold()).  A read waiting for room picks
+ * up what's been collected, and if it's still waiting while outputs are held, asks for a
+ * collection (at most once a second), so dead outputs don't keep the budget full when nothing
+ * else is allocating.
+ */
+class MrGeoReadBudget
+{
+private final static String READ_MEMORY_BUDGET = "read.memory.budget";  // MB, default is 1/4 of the max heap
+private final static String READ_MEMORY_WAIT = "read.memory.wait";
+private final static String READ_MEMORY_WAIT_DEFAULT = "30";  // 30 sec
+private final static String READ_MAX_MB = "read.max.mb";  // default is the memory budget
+private final static String READ_MAX_PIXELS = "read.max.pixels";
+private final static String READ_MAX_PIXELS_DEFAULT = "0";  // no limit
+
+private final static long KB = 1024;
+private final static long MB = 1024 * KB;
+
+private final static long POLL_MILLIS = 100;  // how often a waiting read looks for collected outputs
+private final static long GC_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoReadBudget");
+
+private static MrGeoReadBudget instance = null;
+
+private final long budget;  // KB, 0 if there isn't one
+private final long wait;
+private final long maxBytes;
+private final long maxPixels;
+
+// permits are KB, so even big heaps fit in an int
+private final Semaphore memory;
+
+// room held by outputs still in use, given back when their data is collected
+private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+private final Set<Hold> held = Collections.newSetFromMap(new ConcurrentHashMap<Hold, Boolean>());
+private final AtomicLong lastGc = new AtomicLong(System.nanoTime() - GC_INTERVAL);
+
+private final MrGeoMetrics metrics;
+
+static synchronized MrGeoReadBudget getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoReadBudget(config);
+  }
+
+  return instance;
+}
+
+// not private, so tests can make their own
+MrGeoReadBudget(Properties config)
+{
+  String mb = config.getProperty(READ_MEMORY_BUDGET, "");
+  long bytes = mb.isEmpty() ? Runtime.getRuntime().maxMemory() / 4 : Long.parseLong(mb) * MB;
+
+  budget = Math.min(Integer.MAX_VALUE, bytes / KB);
+  memory = budget > 0 ? new Semaphore((int) budget, true) : null;
+
+  wait = Long.parseLong(config.getProperty(READ_MEMORY_WAIT, READ_MEMORY_WAIT_DEFAULT));
+
+  // The limit is on the data a read covers.  The memory a read's output needs is a separate
+  // matter, anything that can't fit in the budget is turned away by acquire(), before any I/O.
+  String max = config.getProperty(READ_MAX_MB, "");
+  maxBytes = max.isEmpty() ? budget * KB : Long.parseLong(max) * MB;
+  maxPixels = Long.parseLong(config.getProperty(READ_MAX_PIXELS, READ_MAX_PIXELS_DEFAULT));
+
+  metrics = MrGeoMetrics.getInstance(config);
+
+  log.info("Read budget: " + (budget / KB) + "MB wait: " + wait + "s max per read: " + (maxBytes / MB) + "MB" +
+      (maxPixels > 0 ? ", " + maxPixels + " pixels" : ""));
+}
+
+/**
+ * Check the size of a read against the per-request limits.
+ *
+ * @throws IllegalArgumentException if the read is too big
+ */
+void check(String layer, long pixels, long bytes)
+{
+  if (maxPixels > 0 && pixels > maxPixels)
+  {
+    metrics.readRejected();
+    throw new IllegalArgumentException("Read of " + layer + " is too big: " + pixels + " pixels, the limit is " +
+        maxPixels + " (" + READ_MAX_PIXELS + ")");
+  }
+
+  if (maxBytes > 0 && bytes > maxBytes)
+  {
+    metrics.readRejected();
+    throw new IllegalArgumentException("Read of " + layer + " is too big: " + (bytes / MB) + "MB, the limit is " +
+        (maxBytes / MB) + "MB (" + READ_MAX_MB + ")");
+  }
+}
+
+/**
+ * True if a read of this many bytes can get room from the memory budget at all (i.e. several
+ * reads made as one)
+ */
+boolean fits(long bytes)
+{
+  return memory == null || bytes <= budget * KB;
+}
+
+/**
+ * Get room for a read's output from the memory budget, waiting for other reads to release some
+ * if needed.  Every acquire must be matched by a release() or hold()s of the same size.
+ *
+ * @throws IOException if there isn't room in time, or the read is bigger than the whole budget
+ */
+void acquire(String layer, long bytes) throws IOException
+{
+  if (memory == null)
+  {
+    return;
+  }
+
+  if (!fits(bytes))
+  {
+    metrics.readRejected();
+    throw new IOException("Read of " + layer + " is too big: " + (bytes / MB) + "MB, bigger than the whole " +
+        (budget / KB) + "MB memory budget (" + READ_MEMORY_BUDGET + ")");
+  }
+
+  int permits = permits(bytes);
+  long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(wait);
+  try
+  {
+    reap();
+    while (!memory.tryAcquire(permits, POLL_MILLIS, TimeUnit.MILLISECONDS))
+    {
+      if (System.nanoTime() - deadline >= 0)
+      {
+        metrics.readRejected();
+        throw new IOException("Not enough memory to read " + layer + ": " + (bytes / MB) + "MB needed, " +
+            (memory.availablePermits() / KB) + "MB of " + (budget / KB) + "MB free after waiting " + wait + "s (" +
+            READ_MEMORY_BUDGET + ")");
+      }
+
+      if (reap() == 0 && !held.isEmpty())
+      {
+        collect();
+      }
+    }
+  }
+  catch (InterruptedException e)
+  {
+    Thread.currentThread().interrupt();
+    throw new InterruptedIOException("Interrupted while waiting for memory to read " + layer);
+  }
+}
+
+void release(long bytes)
+{
+  if (memory != null)
+  {
+    memory.release(permits(bytes));
+  }
+}
+
+/**
+ * Keep bytes of an acquire() until data (the output's storage) is garbage collected, instead of
+ * releasing them now
+ */
+void hold(Object data, long bytes)
+{
+  if (memory != null)
+  {
+    held.add(new Hold(data, bytes, collected));
+  }
+}
+
+// give back the room of the outputs that have been collected, returns how many there were
+private int reap()
+{
+  int count = 0;
+
+  Reference<?> ref;
+  while ((ref = collected.poll()) != null)
+  {
+    Hold hold = (Hold) ref;
+    if (held.remove(hold))
+    {
+      release(hold.bytes);
+      count++;
+    }
+  }
+
+  return count;
+}
+
+// a read is waiting on outputs that may be dead, get them collected (once a second at most)
+private void collect()
+{
+  long last = lastGc.get();
+  long now = System.nanoTime();
+  if (now - last >= GC_INTERVAL && lastGc.compareAndSet(last, now))
+  {
+    log.fine("Waiting for memory with " + held.size() + " outputs held, requesting a collection");
+    System.gc();
+  }
+}
+
+// bytes in use by reads in progress and the outputs they hold
+long getInUse()
+{
+  return memory == null ? 0 : (budget - memory.availablePermits()) * KB;
+}
+
+// KB, rounded up.  acquire() only takes reads that fit in the budget.
+private int permits(long bytes)
+{
+  return (int) Math.max(1, (bytes + KB - 1) / KB);
+}
+
+private static class Hold extends PhantomReference<Object>
+{
+  private final long bytes;
+
+  Hold(Object data, long bytes, ReferenceQueue<Object> queue)
+  {
+    super(data, queue);
+    this.bytes = bytes;
+  }
+}
+
+}
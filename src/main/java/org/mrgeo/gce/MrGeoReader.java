@@ -30,14 +30,7 @@ import org.geotools.geometry.GeneralEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
-import org.mrgeo.data.DataProviderFactory;
-import org.mrgeo.data.ProviderProperties;
-import org.mrgeo.data.image.MrsImageDataProvider;
-import org.mrgeo.data.image.MrsImageReader;
 import org.mrgeo.data.raster.MrGeoRaster;
-import org.mrgeo.data.raster.RasterUtils;
-import org.mrgeo.image.MrsImage;
-import org.mrgeo.image.MrsPyramid;
 import org.mrgeo.image.MrsPyramidMetadata;
 import org.mrgeo.utils.LongRectangle;
 import org.mrgeo.utils.tms.Bounds;
@@ -56,62 +49,83 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import javax.media.jai.ImageLayout;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
-import java.io.Closeable;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.util.*;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-class MrGeoReader extends AbstractGridCoverage2DReader implements GridCoverage2DReader
+class MrGeoReader extends AbstractGridCoverage2DReader implements GridCoverage2DReader, MrGeoMultiCoverageReader
 {
 private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoReader");
 
 final static String USERNAME = "user.name";
 final static String USER_ROLES = "user.roles";
 
-private Properties config = new Properties();
+private final static String READ_TILED_THRESHOLD = "read.tiled.threshold";
+private final static String READ_TILED_THRESHOLD_DEFAULT = "16";  // tiles
 
-private ProviderProperties providerProperties = ProviderProperties.fromDelimitedString("");
+private Properties config = new Properties();
 
-private Set<String> layers = new HashSet<>();
+private static CoordinateReferenceSystem shared4326 = null;
 
 private CoordinateReferenceSystem epsg4326 = null;
 
+private final MrGeoLayerRegistry layers;
+private final MrGeoMetadataCache metadataCache;
+private final MrGeoTileCache tileCache;
+private final MrGeoDecimator decimator;
+private final MrGeoReadBudget budget;
+private final MrGeoRasterView views;
+private final MrGeoTileFetcher fetcher;
+private final MrGeoWebMercator webMercator;
+private final MrGeoPrefetcher prefetcher;
+private final MrGeoMetrics metrics;
+
+private final int tiledThreshold;
+
 MrGeoReader(Properties config) throws IOException
 {
   this.config = config;
 
-  String epsg = "EPSG:4326";
-  try
-  {
-    epsg4326 = CRS.decode(epsg);
-  }
-  catch (FactoryException e)
-  {
-    e.printStackTrace();
-  }
-
+  layers = MrGeoLayerRegistry.getInstance(config);
+  metadataCache = MrGeoMetadataCache.getInstance(config);
+  tileCache = MrGeoTileCache.getInstance(config);
+  decimator = MrGeoDecimator.getInstance(config);
+  budget = MrGeoReadBudget.getInstance(config);
+  views = MrGeoRasterView.getInstance(config);
+  fetcher = MrGeoTileFetcher.getInstance(config);
+  webMercator = MrGeoWebMercator.getInstance(config);
+  prefetcher = MrGeoPrefetcher.getInstance(config);
+  metrics = MrGeoMetrics.getInstance(config);
 
-  providerProperties = new ProviderProperties(config.getProperty(USERNAME, ""), config.getProperty(USER_ROLES, ""));
-
-  loadLayers();
+  tiledThreshold = Integer.parseInt(config.getProperty(READ_TILED_THRESHOLD, READ_TILED_THRESHOLD_DEFAULT));
 
+  epsg4326 = getEpsg4326();
 }
 
-private void loadLayers() throws IOException
+// Decoding a CRS isn't cheap, so it's only done once and shared
+static synchronized CoordinateReferenceSystem getEpsg4326()
 {
-  Collections.addAll(layers, DataProviderFactory.listImages(providerProperties));
-
-  if (log.isLoggable(Level.FINE))
+  if (shared4326 == null)
   {
-    log.fine("Layers found:");
-    for (String layer : layers)
+    String epsg = "EPSG:4326";
+    try
+    {
+      shared4326 = CRS.decode(epsg);
+    }
+    catch (FactoryException e)
     {
-      log.fine("  " + layer);
+      log.log(Level.SEVERE, "Error decoding " + epsg, e);
     }
   }
+
+  return shared4326;
 }
 
 public Format getFormat()
@@ -135,6 +149,88 @@ public GridCoverage2D read(GeneralParameterValue[] parameters) throws IOExceptio
 
 @Override
 public GridCoverage2D read(String name, GeneralParameterValue[] parameters) throws IOException
+{
+  long start = System.nanoTime();
+  boolean ok = false;
+  try
+  {
+    GridCoverage2D coverage = readCoverage(name, parameters);
+    ok = true;
+
+    return coverage;
+  }
+  finally
+  {
+    // unknown names aren't counted per layer, so bad requests can't fill up the metrics
+    metrics.read(layers.contains(name) ? name : null, System.nanoTime() - start, ok);
+  }
+}
+
+/**
+ * Read several coverages over the same grid geometry (i.e. the layers of a layer group) in one go.
+ * Layers sharing a tile grid (tile size and zoom levels) share one tile plan, and their tiles are
+ * read together, in one I/O schedule.  Reads that don't build their output in memory (tiled and
+ * web mercator reads) don't gain anything from that, so they're made one by one.
+ *
+ * @return the coverages, in the same order as the names
+ */
+@Override
+public GridCoverage2D[] read(String[] names, GeneralParameterValue[] parameters) throws IOException
+{
+  log.fine("Reading coverages: " + Arrays.toString(names));
+
+  final Request request = parse(parameters);
+  final GridCoverage2D[] coverages = new GridCoverage2D[names.length];
+
+  // group the layers by tile grid, in order
+  Map<String, List<Integer>> grids = new LinkedHashMap<>();
+  for (int i = 0; i < names.length; i++)
+  {
+    if (!checkName(names[i])) {
+      throw new IllegalArgumentException("The specified coverage " + names[i] + "is not found");
+    }
+
+    MrsPyramidMetadata meta = metadataCache.get(names[i]);
+    String grid = meta.getTilesize() + ":" + minZoom(meta) + "-" + meta.getMaxZoomLevel();
+
+    List<Integer> group = grids.get(grid);
+    if (group == null)
+    {
+      group = new ArrayList<>();
+      grids.put(grid, group);
+    }
+    group.add(i);
+  }
+
+  for (List<Integer> group : grids.values())
+  {
+    // without an envelope, each layer is read at its own bounds
+    Plan plan = null;
+    if (request.envelope != null && group.size() > 1)
+    {
+      plan = plan(request, metadataCache.get(names[group.get(0)]));
+    }
+
+    // the batch gets memory for all its layers at once, layers that don't fit in the budget
+    // together are read one at a time
+    if (plan == null || plan.crop == null || plan.tiles > tiledThreshold ||
+        !budget.fits(batchBytes(names, group, request, plan)))
+    {
+      for (int i : group)
+      {
+        coverages[i] = read(names[i], parameters);
+      }
+    }
+    else
+    {
+      readBatch(names, group, request, plan, coverages);
+    }
+  }
+
+  return coverages;
+}
+
+private GridCoverage2D readCoverage(String name, GeneralParameterValue[] parameters) throws IOException
 {
   log.fine("Reading coverage: " + name);
 
@@ -142,8 +238,247 @@ public GridCoverage2D read(String name, GeneralParameterValue[] parameters) thro
     throw new IllegalArgumentException("The specified coverage " + name + "is not found");
   }
 
-  ReferencedEnvelope requestedEnvelope = null;
+  final Request request = parse(parameters);
+  final MrsPyramidMetadata meta = metadataCache.get(name);
+
+  final int[] bands = checkBands(name, meta, request.bands);
+
+  try
+  {
+    final Plan plan = plan(request, meta);
+
+    final int zoom = plan.zoom;
+    final TileBounds tb = plan.tb;
+    final long tiles = plan.tiles;
+
+    // turn away reads that are too big before doing any I/O
+    final long pixelBytes = pixelBytes(meta, bands);
+    checkSize(name, meta, bands, plan);
+
+    if (plan.crop == null)
+    {
+      // read straight into the requested web mercator grid, no need for geoserver to reproject
+      final Rectangle dim = request.dim;
+      log.fine("Web mercator read: " + dim.width + "x" + dim.height);
+      metrics.readDetail(zoom, tiles, (long) dim.width * dim.height);
+
+      final long size = (long) dim.width * dim.height * pixelBytes;
+      final BufferedImage img;
+
+      budget.acquire(name, size);
+      try
+      {
+        img = webMercator.getImage(name, zoom, tb, request.mercatorGrid.getEnvelope(), dim.width, dim.height, meta,
+            bands);
+      }
+      catch (IOException | RuntimeException | Error e)
+      {
+        budget.release(size);
+        throw e;
+      }
+
+      // the image is used for the rest of the render, keep its room until it's gone
+      budget.hold(img.getRaster().getDataBuffer(), size);
+
+      // get the tiles the next read will probably want on their way, now that this read's tiles
+      // aren't competing with them
+      prefetcher.read(name, zoom, tb, meta);
+
+      final GridCoverageFactory factory = CoverageFactoryFinder.getGridCoverageFactory(null);
+      return factory.create(meta.getPyramid(), img, plan.envelope);
+    }
+
+    final Rectangle crop = plan.crop;
+    metrics.readDetail(zoom, tiles, (long) crop.width * crop.height);
+
+    final RenderedImage img;
+
+    if (tiles > tiledThreshold)
+    {
+      // big read, let the rendering chain pull the tiles as it needs them.  Those pulls happen
+      // after this returns, so there's no point where prefetching wouldn't compete with them, and
+      // it's skipped.
+      log.fine("Tiled image: " + tiles + " tiles");
+
+      img = new MrGeoTiledImage(name, zoom, tb, crop, meta, bands, fetcher, views);
+    }
+    else
+    {
+      // the output is built in memory, make sure there's room for it
+      final long size = (long) crop.width * crop.height * pixelBytes;
+
+      final BufferedImage image;
+      budget.acquire(name, size);
+      try
+      {
+        image = getImage(name, zoom, tb, crop, meta, bands);
+      }
+      catch (IOException | RuntimeException | Error e)
+      {
+        budget.release(size);
+        throw e;
+      }
+
+      budget.hold(image.getRaster().getDataBuffer(), size);
+      img = image;
+
+      prefetcher.read(name, zoom, tb, meta);
+    }
+
+    final GridCoverageFactory factory = CoverageFactoryFinder.getGridCoverageFactory(null);
+    return factory.create(meta.getPyramid(), img, plan.envelope);
+  }
+  catch (Exception e)
+  {
+    log.log(Level.SEVERE, "Error reading coverage: " + name, e);
+    throw e;
+  }
+}
+
+// Read a group of layers sharing a plan (for an in-memory read), with one fetch for all of them
+private void readBatch(String[] names, List<Integer> group, Request request, final Plan plan,
+    GridCoverage2D[] coverages) throws IOException
+{
+  final long start = System.nanoTime();
+  boolean ok = false;
+
+  final int count = group.size();
+  final String[] layers = new String[count];
+  final MrsPyramidMetadata[] metas = new MrsPyramidMetadata[count];
+  final int[][] bands = new int[count][];
+  final double[][] nodata = new double[count][];
+  final WritableRaster[] rasters = new WritableRaster[count];
+  final long[] sizes = new long[count];
+
+  long size = 0;
+  try
+  {
+    final int tilesize = metadataCache.get(names[group.get(0)]).getTilesize();
+
+    for (int l = 0; l < count; l++)
+    {
+      layers[l] = names[group.get(l)];
+      metas[l] = metadataCache.get(layers[l]);
+      bands[l] = checkBands(layers[l], metas[l], request.bands);
+      nodata[l] = MrGeoRasterCopier.select(metas[l].getDefaultValues(), bands[l]);
+
+      long pixelBytes = pixelBytes(metas[l], bands[l]);
+      checkSize(layers[l], metas[l], bands[l], plan);
+
+      sizes[l] = (long) plan.crop.width * plan.crop.height * pixelBytes;
+      size += sizes[l];
+    }
+
+    log.fine("Batch read: " + Arrays.toString(layers) + " zoom: " + plan.zoom + " tiles: " + plan.tiles);
+
+    final GridCoverageFactory factory = CoverageFactoryFinder.getGridCoverageFactory(null);
+
+    budget.acquire(Arrays.toString(layers), size);
+    boolean built = false;
+    try
+    {
+      for (int l = 0; l < count; l++)
+      {
+        SampleModel sm = MrGeoTiledImage.createSampleModel(metas[l], bands[l])
+            .createCompatibleSampleModel(plan.crop.width, plan.crop.height);
+        rasters[l] = Raster.createWritableRaster(sm, null);
+      }
+
+      fetcher.fetch(layers, plan.zoom, plan.tb, new MrGeoTileFetcher.BatchHandler()
+      {
+        @Override
+        public void tile(int l, long tx, long ty, MrGeoRaster tile)
+        {
+          copyTile(tile, tx, ty, plan.tb, tilesize, plan.crop, rasters[l], nodata[l], bands[l]);
+        }
+      });
+
+      // after the batch's own tiles are in, so the prefetches don't compete with them
+      for (int l = 0; l < count; l++)
+      {
+        prefetcher.read(layers[l], plan.zoom, plan.tb, metas[l]);
+      }
+
+      for (int l = 0; l < count; l++)
+      {
+        metrics.readDetail(plan.zoom, plan.tiles, (long) plan.crop.width * plan.crop.height);
+
+        BufferedImage img = new BufferedImage(MrGeoTiledImage.createColorModel(rasters[l].getSampleModel()),
+            rasters[l], false, null);
+        coverages[group.get(l)] = factory.create(metas[l].getPyramid(), img, new GeneralEnvelope(plan.envelope));
+      }
+      built = true;
+    }
+    finally
+    {
+      if (built)
+      {
+        // each output keeps its room until it's gone
+        for (int l = 0; l < count; l++)
+        {
+          budget.hold(rasters[l].getDataBuffer(), sizes[l]);
+        }
+      }
+      else
+      {
+        budget.release(size);
+      }
+    }
+
+    ok = true;
+  }
+  finally
+  {
+    // the layers were read together, they all took as long as the batch
+    long nanos = System.nanoTime() - start;
+    for (int l = 0; l < count; l++)
+    {
+      String name = names[group.get(l)];
+      metrics.read(this.layers.contains(name) ? name : null, nanos, ok);
+    }
+  }
+}
+
+// Memory for the outputs of a batch
+private long batchBytes(String[] names, List<Integer> group, Request request, Plan plan) throws IOException
+{
+  long size = 0;
+  for (int i : group)
+  {
+    MrsPyramidMetadata meta = metadataCache.get(names[i]);
+    size += (long) plan.crop.width * plan.crop.height * pixelBytes(meta, checkBands(names[i], meta, request.bands));
+  }
+
+  return size;
+}
+
+// What a read asks for, from its parameters
+private static class Request
+{
+  ReferencedEnvelope envelope = null;  // EPSG:4326
   Rectangle dim = null;
+  GridGeometry2D mercatorGrid = null;
+  OverviewPolicy policy = OverviewPolicy.QUALITY;
+  int[] bands = null;
+}
+
+// Where a read's pixels come from:  the zoom level and the tiles, and where the requested area is
+// within them.  Other than when no envelope is given (the layer's bounds are used), it only depends
+// on the request and the tile grid, so layers with the same grid can share a plan.
+private static class Plan
+{
+  int zoom;
+  TileBounds tb;
+  long tiles;
+
+  // requested area within the tiles, null for a web mercator read (which resamples to the grid)
+  Rectangle crop;
+  GeneralEnvelope envelope;
+}
+
+private Request parse(GeneralParameterValue[] parameters)
+{
+  Request request = new Request();
 
   if (parameters != null) {
     for (GeneralParameterValue parameter : parameters)
@@ -155,18 +490,34 @@ public GridCoverage2D read(String name, GeneralParameterValue[] parameters) thro
         final GridGeometry2D gg = (GridGeometry2D) param.getValue();
         try
         {
-          requestedEnvelope = ReferencedEnvelope.create(gg.getEnvelope(), gg.getCoordinateReferenceSystem());
+          request.envelope = ReferencedEnvelope.create(gg.getEnvelope(), gg.getCoordinateReferenceSystem());
           if (!gg.getCoordinateReferenceSystem().getName().equals(epsg4326.getName()))
           {
-            requestedEnvelope = requestedEnvelope.transform(epsg4326, true);
+            request.envelope = request.envelope.transform(epsg4326, true);
           }
         }
         catch (Exception e)
         {
-          requestedEnvelope = null;
+          request.envelope = null;
         }
 
-        dim = gg.getGridRange2D().getBounds();
+        request.dim = gg.getGridRange2D().getBounds();
+
+        if (request.envelope != null && webMercator.accepts(gg.getCoordinateReferenceSystem()))
+        {
+          request.mercatorGrid = gg;
+        }
+      }
+      else if (riname.equals(AbstractGridFormat.OVERVIEW_POLICY.getName()))
+      {
+        if (param.getValue() != null)
+        {
+          request.policy = (OverviewPolicy) param.getValue();
+        }
+      }
+      else if (riname.equals(AbstractGridFormat.BANDS.getName()))
+      {
+        request.bands = (int[]) param.getValue();
       }
 //      else if (name.equals(AbstractGridFormat.INPUT_TRANSPARENT_COLOR.getName()))
 //      {
@@ -183,15 +534,16 @@ public GridCoverage2D read(String name, GeneralParameterValue[] parameters) thro
     }
   }
 
-  MrsImageDataProvider dp = DataProviderFactory
-      .getMrsImageDataProvider(name, DataProviderFactory.AccessMode.READ, providerProperties);
-  final MrsPyramidMetadata meta = dp.getMetadataReader().read();
+  return request;
+}
 
+private Plan plan(Request request, MrsPyramidMetadata meta)
+{
   final int tilesize = meta.getTilesize();
   Bounds bounds;
   int zoom;
 
-  if (requestedEnvelope == null)
+  if (request.envelope == null)
   {
     log.fine("No envelope given, calculating bounds");
     bounds = meta.getBounds();
@@ -199,114 +551,207 @@ public GridCoverage2D read(String name, GeneralParameterValue[] parameters) thro
   }
   else
   {
+    final ReferencedEnvelope requestedEnvelope = request.envelope;
     bounds = TMSUtils.limit(new Bounds(requestedEnvelope.getMinX(), requestedEnvelope.getMinY(), requestedEnvelope.getMaxX(), requestedEnvelope.getMaxY()));
 
-    double pw = bounds.width() / dim.getWidth();
-    double ph = bounds.height() / dim.getHeight();
+    double pw = bounds.width() / request.dim.getWidth();
+    double ph = bounds.height() / request.dim.getHeight();
 
-    zoom = Math.max(TMSUtils.zoomForPixelSize(pw, tilesize), TMSUtils.zoomForPixelSize(ph, tilesize));
+    zoom = zoomForResolution(meta, minZoom(meta), request.policy, Math.min(pw, ph));
   }
 
-  log.fine("Zoom: " + zoom);
-  log.fine("Bounds: " + bounds.toString());
-  final MrsPyramid pyramid = MrsPyramid.open(dp);
-
-  final MrsImage image;
-  if (pyramid.hasPyramids() && zoom <= meta.getMaxZoomLevel() && zoom > 0)
-  {
-    image = pyramid.getImage(zoom);
-  }
-  else
+  if (zoom > meta.getMaxZoomLevel() || zoom < minZoom(meta))
   {
-    image = pyramid.getHighestResImage();
     zoom = meta.getMaxZoomLevel();
   }
 
-  try
+  log.fine("Zoom: " + zoom);
+  log.fine("Bounds: " + bounds.toString());
+
+  Plan plan = new Plan();
+  plan.zoom = zoom;
+
+  TileBounds tb = TMSUtils.boundsToTile(bounds, zoom, tilesize);
+  log.fine("Tile Bounds: " + tb.toString());
+
+  plan.tb = tb;
+  plan.tiles = (tb.e - tb.w + 1) * (tb.n - tb.s + 1);
+
+  if (request.mercatorGrid != null)
   {
-    TileBounds tb = TMSUtils.boundsToTile(bounds, zoom, tilesize);
-    log.fine("Tile Bounds: " + tb.toString());
+    plan.envelope = new GeneralEnvelope(request.mercatorGrid.getEnvelope());
+    plan.envelope.setCoordinateReferenceSystem(request.mercatorGrid.getCoordinateReferenceSystem());
 
-    MrGeoRaster merged = image.getRaster(tb);
+    return plan;
+  }
 
-    Bounds actualBounds = TMSUtils.tileToBounds(tb, zoom, tilesize);
+  final int width = (int) (tb.e - tb.w + 1) * tilesize;
+  final int height = (int) (tb.n - tb.s + 1) * tilesize;
 
-    Pixel requestedUL =
-        TMSUtils.latLonToPixelsUL(bounds.n, bounds.w, zoom, tilesize);
-    Pixel requestedLR =
-        TMSUtils.latLonToPixelsUL(bounds.s, bounds.e, zoom, tilesize);
+  Bounds actualBounds = TMSUtils.tileToBounds(tb, zoom, tilesize);
 
-    Pixel actualUL =
-        TMSUtils.latLonToPixelsUL(actualBounds.n, actualBounds.w, zoom, tilesize);
+  Pixel requestedUL =
+      TMSUtils.latLonToPixelsUL(bounds.n, bounds.w, zoom, tilesize);
+  Pixel requestedLR =
+      TMSUtils.latLonToPixelsUL(bounds.s, bounds.e, zoom, tilesize);
+
+  Pixel actualUL =
+      TMSUtils.latLonToPixelsUL(actualBounds.n, actualBounds.w, zoom, tilesize);
 //      TMSUtils.Pixel actualLR =
 //          TMSUtils.latLonToPixelsUL(actualBounds.s, actualBounds.e, zoomLevel, tilesize);
 
-    int offsetX = (int) (requestedUL.px - actualUL.px);
-    int offsetY = (int) (requestedUL.py - actualUL.py);
+  int offsetX = (int) (requestedUL.px - actualUL.px);
+  int offsetY = (int) (requestedUL.py - actualUL.py);
 
-    int croppedW = (int) (requestedLR.px - requestedUL.px);
-    int croppedH = (int) (requestedLR.py - requestedUL.py);
+  int croppedW = (int) (requestedLR.px - requestedUL.px);
+  int croppedH = (int) (requestedLR.py - requestedUL.py);
 
-    log.fine("Original Crop values: x: " + offsetX + " y: " + offsetY + " w: " + croppedW + " h: " + croppedH);
+  log.fine("Original Crop values: x: " + offsetX + " y: " + offsetY + " w: " + croppedW + " h: " + croppedH);
 
 
-    if (offsetX < 0)
-    {
-      offsetX = 0;
-      bounds = new Bounds(actualBounds.w, bounds.s, bounds.e, bounds.n);
-    }
+  if (offsetX < 0)
+  {
+    offsetX = 0;
+    bounds = new Bounds(actualBounds.w, bounds.s, bounds.e, bounds.n);
+  }
 
-    if (offsetY < 0)
-    {
-      offsetY = 0;
-      bounds = new Bounds(bounds.w, bounds.s, bounds.e, actualBounds.n);
+  if (offsetY < 0)
+  {
+    offsetY = 0;
+    bounds = new Bounds(bounds.w, bounds.s, bounds.e, actualBounds.n);
 
-    }
+  }
 
-    if (offsetX + croppedW > merged.width())
-    {
-      bounds = new Bounds(bounds.w, bounds.s, actualBounds.e, bounds.n);
+  if (offsetX + croppedW > width)
+  {
+    bounds = new Bounds(bounds.w, bounds.s, actualBounds.e, bounds.n);
 
-      croppedW = merged.width() - offsetX;
-    }
+    croppedW = width - offsetX;
+  }
 
-    if (offsetY + croppedH > merged.height())
-    {
-      bounds = new Bounds(bounds.w, actualBounds.s, bounds.e, bounds.n);
+  if (offsetY + croppedH > height)
+  {
+    bounds = new Bounds(bounds.w, actualBounds.s, bounds.e, bounds.n);
 
-      croppedH = merged.height() - offsetY;
-    }
+    croppedH = height - offsetY;
+  }
 
-    log.fine("Raw raster: x: " + 0 + " y: " + 0 + " w: " + merged.width() + " h: " +
-        merged.height());
+  log.fine("Raw raster: x: " + 0 + " y: " + 0 + " w: " + width + " h: " + height);
 
-    log.fine("Cropping to: x: " + offsetX + " y: " + offsetY + " w: " + croppedW + " h: " + croppedH);
+  log.fine("Cropping to: x: " + offsetX + " y: " + offsetY + " w: " + croppedW + " h: " + croppedH);
 
-    final MrGeoRaster cropped = merged.clip(offsetX, offsetY, croppedW, croppedH);
+  plan.crop = new Rectangle(offsetX, offsetY, croppedW, croppedH);
 
-    log.fine(
-        "Cropped raster: x: " + 0 + " y: " + 0 + " w: " + cropped.width() + " h: " +
-            cropped.height());
+  plan.envelope = new GeneralEnvelope(new double[] { bounds.w, bounds.s },
+      new double[] { bounds.e, bounds.n});
+  plan.envelope.setCoordinateReferenceSystem(epsg4326);
 
-    final GeneralEnvelope envelope = new GeneralEnvelope(new double[] { bounds.w, bounds.s },
-        new double[] { bounds.e, bounds.n});
-    envelope.setCoordinateReferenceSystem(epsg4326);
+  return plan;
+}
 
-    final BufferedImage img = RasterUtils.makeBufferedImage(cropped.toRaster());
+// Check a read's size against the read limits.  A read at a decimated zoom level is sized by the
+// full resolution tiles it pulls from storage (all bands), not the tiles it returns.  A tiled read
+// never has its output in memory (the rendering chain pulls a tile at a time), so only the pixel
+// limit applies to it.
+private void checkSize(String name, MrsPyramidMetadata meta, int[] bands, Plan plan) throws IOException
+{
+  final long tilePixels = (long) meta.getTilesize() * meta.getTilesize();
+  final boolean tiled = plan.crop != null && plan.tiles > tiledThreshold;
 
-    final GridCoverageFactory factory = CoverageFactoryFinder.getGridCoverageFactory(null);
-    return factory.create(pyramid.getName(), img, envelope);
+  long pixels;
+  long bytes;
+  if (decimator.isDecimated(name, plan.zoom))
+  {
+    long source = decimator.getSourceTiles(name, meta, plan.zoom, plan.tb);
+    pixels = source * tilePixels;
+    bytes = pixels * pixelBytes(meta, null);
   }
-  catch (Exception e)
+  else
   {
-    e.printStackTrace();
-    throw e;
+    pixels = plan.tiles * tilePixels;
+    bytes = pixels * pixelBytes(meta, bands);
   }
-  finally
+
+  budget.check(name, pixels, tiled ? 0 : bytes);
+}
+
+// bytes per pixel of the selected bands
+private static long pixelBytes(MrsPyramidMetadata meta, int[] bands)
+{
+  return (long) (bands == null ? meta.getBands() : bands.length) * (DataBuffer.getDataTypeSize(meta.getTileType()) / 8);
+}
+
+// The requested bands, checked against the layer.  Asking for every band, in order, is the same
+// as not asking (null), which lets the copies skip the band lookup.
+private static int[] checkBands(String name, MrsPyramidMetadata meta, int[] bands)
+{
+  if (bands == null)
+  {
+    return null;
+  }
+
+  if (bands.length == 0)
+  {
+    throw new IllegalArgumentException("No bands requested from " + name);
+  }
+
+  boolean all = bands.length == meta.getBands();
+  for (int b = 0; b < bands.length; b++)
+  {
+    if (bands[b] < 0 || bands[b] >= meta.getBands())
+    {
+      throw new IllegalArgumentException("Band " + bands[b] + " is out of range for " + name +
+          " (" + meta.getBands() + " bands)");
+    }
+    all &= bands[b] == b;
+  }
+
+  return all ? null : bands.clone();
+}
+
+// Build the cropped output directly from the tiles, copying only the part of each tile that
+// falls inside the crop (and only the selected bands).  The pixels get copied exactly once.
+private BufferedImage getImage(String name, int zoom, final TileBounds tb, final Rectangle crop,
+    final MrsPyramidMetadata meta, final int[] bands) throws IOException
+{
+  final int tilesize = meta.getTilesize();
+  final double[] nodata = MrGeoRasterCopier.select(meta.getDefaultValues(), bands);
+
+  SampleModel sm = MrGeoTiledImage.createSampleModel(meta, bands).createCompatibleSampleModel(crop.width, crop.height);
+  final WritableRaster raster = Raster.createWritableRaster(sm, null);
+
+  fetcher.fetch(name, zoom, tb, new MrGeoTileFetcher.TileHandler()
+  {
+    @Override
+    public void tile(long tx, long ty, MrGeoRaster tile)
+    {
+      copyTile(tile, tx, ty, tb, tilesize, crop, raster, nodata, bands);
+    }
+  });
+
+  log.fine("Tile cache: " + tileCache.toString());
+
+  return new BufferedImage(MrGeoTiledImage.createColorModel(sm), raster, false, null);
+}
+
+// Copy the part of a tile (or nodata, for a missing tile) that falls inside the crop to the output
+private static void copyTile(MrGeoRaster tile, long tx, long ty, TileBounds tb, int tilesize, Rectangle crop,
+    WritableRaster raster, double[] nodata, int[] bands)
+{
+  Rectangle r = new Rectangle((int) (tx - tb.w) * tilesize, (int) (tb.n - ty) * tilesize, tilesize, tilesize);
+  Rectangle overlap = r.intersection(crop);
+
+  if (!overlap.isEmpty())
   {
-    if (image != null)
+    if (tile == null)
     {
-      image.close();
+      MrGeoRasterCopier.fill(raster, overlap.x - crop.x, overlap.y - crop.y, overlap.width, overlap.height,
+          nodata);
+    }
+    else
+    {
+      MrGeoRasterCopier.copy(tile, overlap.x - r.x, overlap.y - r.y, overlap.width, overlap.height,
+          raster, overlap.x - crop.x, overlap.y - crop.y, bands);
     }
   }
 }
@@ -329,14 +774,12 @@ public double[] getReadingResolutions(String name, OverviewPolicy policy, double
   else
   {
     // calculate the actual resolution we'll use for the reading
-    MrsImageDataProvider dp = DataProviderFactory
-        .getMrsImageDataProvider(name, DataProviderFactory.AccessMode.READ, providerProperties);
-    final MrsPyramidMetadata meta = dp.getMetadataReader().read();
+    final MrsPyramidMetadata meta = metadataCache.get(name);
 
-    final int tilesize = meta.getTilesize();
-    int zoom = Math.max(TMSUtils.zoomForPixelSize(requestedResolution[0], tilesize), TMSUtils.zoomForPixelSize(requestedResolution[1], tilesize));
+    int zoom = zoomForResolution(meta, minZoom(meta), policy,
+        Math.min(requestedResolution[0], requestedResolution[1]));
 
-    double res = TMSUtils.resolution(zoom, tilesize);
+    double res = TMSUtils.resolution(zoom, meta.getTilesize());
 
     log.fine("Reading Resolutions for: " + name + " " + res);
 
@@ -357,9 +800,7 @@ public GridEnvelope getOriginalGridRange(String name)
   // get the pixel size of the base image
   try
   {
-    MrsImageDataProvider dp = DataProviderFactory
-        .getMrsImageDataProvider(name, DataProviderFactory.AccessMode.READ, providerProperties);
-    MrsPyramidMetadata meta = dp.getMetadataReader().read();
+    MrsPyramidMetadata meta = metadataCache.get(name);
 
     LongRectangle bounds = meta.getPixelBounds(meta.getMaxZoomLevel());
 
@@ -369,7 +810,7 @@ public GridEnvelope getOriginalGridRange(String name)
   }
   catch (IOException e)
   {
-    e.printStackTrace();
+    log.log(Level.SEVERE, "Error getting grid range for: " + name, e);
   }
 
   return null;
@@ -402,8 +843,7 @@ public GeneralEnvelope getOriginalEnvelope(String name)
   // get bounds
   try
   {
-    MrsImageDataProvider dp = DataProviderFactory.getMrsImageDataProvider(name, DataProviderFactory.AccessMode.READ, providerProperties);
-    MrsPyramidMetadata meta = dp.getMetadataReader().read();
+    MrsPyramidMetadata meta = metadataCache.get(name);
 
     Bounds bounds = meta.getBounds();
 
@@ -417,7 +857,7 @@ public GeneralEnvelope getOriginalEnvelope(String name)
   }
   catch (IOException e)
   {
-    e.printStackTrace();
+    log.log(Level.SEVERE, "Error getting envelope for: " + name, e);
   }
 
   return null;
@@ -429,7 +869,7 @@ public String[] getGridCoverageNames()
 {
   log.fine("Getting coverage names for MrGeo");
 
-  return layers.toArray(new String[layers.size()]);
+  return layers.getNames();
 }
 
 
@@ -496,11 +936,15 @@ public GridEnvelope getOverviewGridEnvelope(String name, int overviewIndex) thro
   // get the pixel size of the base image
   try
   {
-    MrsImageDataProvider dp = DataProviderFactory
-        .getMrsImageDataProvider(name, DataProviderFactory.AccessMode.READ, providerProperties);
-    MrsPyramidMetadata meta = dp.getMetadataReader().read();
+    MrsPyramidMetadata meta = metadataCache.get(name);
+
+    if (overviewIndex < 0 || overviewIndex > numOverviews(meta))
+    {
+      throw new IllegalArgumentException("Invalid overview index " + overviewIndex + " for " + name);
+    }
 
-    LongRectangle bounds = meta.getPixelBounds(overviewIndex);
+    // overview 0 is the native resolution, each overview after that is the next zoom level down
+    LongRectangle bounds = meta.getPixelBounds(meta.getMaxZoomLevel() - overviewIndex);
 
     log.fine("Overview Grid Range for: " + name + " is " + bounds.toString());
 
@@ -508,7 +952,7 @@ public GridEnvelope getOverviewGridEnvelope(String name, int overviewIndex) thro
   }
   catch (IOException e)
   {
-    e.printStackTrace();
+    log.log(Level.SEVERE, "Error getting overview grid range for: " + name, e);
   }
 
   return null;
@@ -523,52 +967,14 @@ public ImageLayout getImageLayout(String name) throws IOException
     throw new IllegalArgumentException("The specified coverage " + name + "is not found");
   }
 
-  // get the pixel size of the base image
   try
   {
-    MrsImageDataProvider dp = DataProviderFactory
-        .getMrsImageDataProvider(name, DataProviderFactory.AccessMode.READ, providerProperties);
-    MrsPyramidMetadata meta = dp.getMetadataReader().read();
-
-    LongRectangle bounds = meta.getPixelBounds(meta.getMaxZoomLevel());
-
-    ImageLayout layout = new ImageLayout();
-    layout.setMinX(0);
-    layout.setMinY(0);
-    layout.setWidth((int)bounds.getWidth());
-    layout.setHeight((int)bounds.getHeight());
-
-    // only 1 tile!
-    layout.setTileGridXOffset(0);
-    layout.setTileGridYOffset(0);
-
-    layout.setTileWidth((int)bounds.getWidth());
-    layout.setTileHeight((int)bounds.getHeight());
-
-    MrsImageReader r = dp.getMrsTileReader(meta.getMaxZoomLevel());
-
-    final Iterator<MrGeoRaster> it = r.get();
-    try
-    {
-      Raster raster = it.next().toRaster();
-
-      layout.setColorModel(RasterUtils.createColorModel(raster));
-      layout.setSampleModel(raster.getSampleModel());
-    }
-    finally
-    {
-      if (!r.canBeCached() && it instanceof Closeable)
-      {
-        ((Closeable) it).close();
-        r.close();
-      }
-    }
-
-    return layout;
+    // built from the metadata (no tile reads) and cached with it
+    return (ImageLayout) metadataCache.getImageLayout(name).clone();
   }
   catch (IOException e)
   {
-    e.printStackTrace();
+    log.log(Level.SEVERE, "Error getting image layout for: " + name, e);
   }
 
   return null;
@@ -584,11 +990,16 @@ public double[][] getResolutionLevels(String name) throws IOException
     throw new IllegalArgumentException("The specified coverage " + name + "is not found");
   }
 
-  final double[][] resolutions = new double[1][2];
-  double[] hres = getHighestRes(name);
+  MrsPyramidMetadata meta = metadataCache.get(name);
 
-  resolutions[0][0] = hres[0];
-  resolutions[0][1] = hres[1];
+  final double[][] resolutions = new double[numOverviews(meta) + 1][2];
+  for (int i = 0; i < resolutions.length; i++)
+  {
+    double res = TMSUtils.resolution(meta.getMaxZoomLevel() - i, meta.getTilesize());
+
+    resolutions[i][0] = res;
+    resolutions[i][1] = res;
+  }
 
   return resolutions;
 }
@@ -616,9 +1027,7 @@ protected double[] getHighestRes(String name)
 
   try
   {
-    MrsImageDataProvider dp = DataProviderFactory
-        .getMrsImageDataProvider(name, DataProviderFactory.AccessMode.READ, providerProperties);
-    MrsPyramidMetadata meta = dp.getMetadataReader().read();
+    MrsPyramidMetadata meta = metadataCache.get(name);
 
     double res = TMSUtils.resolution(meta.getMaxZoomLevel(), meta.getTilesize());
 
@@ -628,7 +1037,7 @@ protected double[] getHighestRes(String name)
   }
   catch (IOException e)
   {
-    e.printStackTrace();
+    log.log(Level.SEVERE, "Error getting resolution for: " + name, e);
   }
 
   return null;
@@ -650,7 +1059,90 @@ public int getNumOverviews(String name)
   }
   log.fine("Getting num overviews for: " + name);
 
+  try
+  {
+    return numOverviews(metadataCache.get(name));
+  }
+  catch (IOException e)
+  {
+    log.log(Level.SEVERE, "Error getting overviews for: " + name, e);
+  }
+
   return 0;
 }
 
+// MrGeo builds pyramids all the way down to zoom 1, so every level below the max zoom is an overview
+private static int numOverviews(MrsPyramidMetadata meta)
+{
+  return meta.hasPyramids() ? meta.getMaxZoomLevel() - 1 : 0;
+}
+
+// The lowest zoom level a read can use:  the bottom of the pyramid, or, for a pyramid without
+// overviews, the lowest level the decimator will make (if it's enabled)
+private int minZoom(MrsPyramidMetadata meta)
+{
+  if (!meta.hasPyramids() && decimator.isEnabled())
+  {
+    return decimator.getMinZoom(meta);
+  }
+
+  return meta.getMaxZoomLevel() - numOverviews(meta);
+}
+
+// Pick the zoom level (between minZoom and the max zoom) to read for the requested resolution,
+// following the GeoTools overview policies (resolutions double with each zoom level out)
+static int zoomForResolution(MrsPyramidMetadata meta, int minZoom, OverviewPolicy policy, double requested)
+{
+  final int maxZoom = meta.getMaxZoomLevel();
+  final int tilesize = meta.getTilesize();
+
+  // a little slop, so an exact match doesn't get lost in the floating point
+  final double tolerance = requested * 1e-6;
+
+  if (policy == null)
+  {
+    policy = OverviewPolicy.getDefaultPolicy();
+  }
+
+  switch (policy)
+  {
+  case IGNORE:
+    return maxZoom;
+  case SPEED:
+    // the highest resolution level that's still at or coarser than the requested resolution
+    for (int z = maxZoom; z >= minZoom; z--)
+    {
+      if (TMSUtils.resolution(z, tilesize) >= requested - tolerance)
+      {
+        return z;
+      }
+    }
+    return minZoom;
+  case NEAREST:
+    int nearest = maxZoom;
+    double diff = Double.MAX_VALUE;
+    for (int z = minZoom; z <= maxZoom; z++)
+    {
+      double d = Math.abs(TMSUtils.resolution(z, tilesize) - requested);
+      if (d < diff)
+      {
+        diff = d;
+        nearest = z;
+      }
+    }
+    return nearest;
+  case QUALITY:
+  default:
+    // the lowest resolution level that's still at or finer than the requested resolution
+    for (int z = minZoom; z <= maxZoom; z++)
+    {
+      if (TMSUtils.resolution(z, tilesize) <= requested + tolerance)
+      {
+        return z;
+      }
+    }
+    return maxZoom;
+  }
+}
+
 }
@@ -0,0 +1,52 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Daemon threads, so the plugin's background work never keeps the web container from stopping
+class MrGeoThreadFactory implements ThreadFactory
+{
+private final String prefix;
+private final int priority;
+private final AtomicInteger count = new AtomicInteger(0);
+
+MrGeoThreadFactory(String prefix)
+{
+  this(prefix, Thread.NORM_PRIORITY);
+}
+
+MrGeoThreadFactory(String prefix, int priority)
+{
+  this.prefix = prefix;
+  this.priority = priority;
+}
+
+@Override
+public Thread newThread(Runnable r)
+{
+  Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+  thread.setDaemon(true);
+  thread.setPriority(priority);
+
+  return thread;
+}
+
+}
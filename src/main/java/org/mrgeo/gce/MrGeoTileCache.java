@@ -0,0 +1,402 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.geotools.util.logging.Logging;
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.data.raster.RasterWritable;
+import org.mrgeo.image.MrsImage;
+
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide cache of decoded MrGeo tiles, keyed by (layer, zoom, tx, ty).  The cache is bounded
+ * by the (approximate) number of bytes held, rather than the number of tiles, since tile size,
+ * band count and data type vary from layer to layer.  Tiles that don't exist are cached too, so
+ * sparse areas don't keep going back to storage.
+ *
+ * When off-heap storage is enabled, tiles are kept serialized in direct buffers and decoded on
+ * each hit, trading a little CPU for keeping large caches out of the garbage collector's way.
+ */
+class MrGeoTileCache implements MrGeoMetadataCache.Listener
+{
+private final static String TILE_CACHE_SIZE = "tile.cache.size";
+private final static String TILE_CACHE_SIZE_DEFAULT = "256";  // 256 MB
+private final static String TILE_CACHE_OFFHEAP = "tile.cache.offheap";
+
+// rough per-entry overhead (key, holder, raster object headers)
+private final static int ENTRY_OVERHEAD = 128;
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoTileCache");
+
+private static MrGeoTileCache instance = null;
+
+private final boolean offheap;
+private final Cache<Key, Tile> cache;
+
+// tile reads in progress, only used when there isn't a cache
+private final ConcurrentMap<Key, FutureTask<MrGeoRaster>> inflight = new ConcurrentHashMap<>();
+private final AtomicLong coalesced = new AtomicLong(0);
+
+private final MrGeoMetrics metrics;
+
+static class Key
+{
+  final String layer;
+  final int zoom;
+  final long tx;
+  final long ty;
+
+  Key(String layer, int zoom, long tx, long ty)
+  {
+    this.layer = layer;
+    this.zoom = zoom;
+    this.tx = tx;
+    this.ty = ty;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (this == o)
+    {
+      return true;
+    }
+    if (!(o instanceof Key))
+    {
+      return false;
+    }
+
+    Key key = (Key) o;
+    return zoom == key.zoom && tx == key.tx && ty == key.ty && layer.equals(key.layer);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    int result = layer.hashCode();
+    result = 31 * result + zoom;
+    result = 31 * result + (int) (tx ^ (tx >>> 32));
+    result = 31 * result + (int) (ty ^ (ty >>> 32));
+    return result;
+  }
+
+  @Override
+  public String toString()
+  {
+    return layer + " (" + zoom + ": " + tx + ", " + ty + ")";
+  }
+}
+
+private static class Tile
+{
+  final static Tile EMPTY = new Tile(null, null, 0);
+
+  final MrGeoRaster raster;
+  final ByteBuffer buffer;
+  final int weight;
+
+  Tile(MrGeoRaster raster, ByteBuffer buffer, int weight)
+  {
+    this.raster = raster;
+    this.buffer = buffer;
+    this.weight = weight;
+  }
+
+  MrGeoRaster get() throws IOException
+  {
+    if (buffer == null)
+    {
+      return raster;
+    }
+
+    ByteBuffer bb = buffer.duplicate();
+    byte[] bytes = new byte[bb.remaining()];
+    bb.get(bytes);
+
+    return RasterWritable.toMrGeoRaster(new RasterWritable(bytes));
+  }
+}
+
+static synchronized MrGeoTileCache getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoTileCache(config);
+  }
+
+  return instance;
+}
+
+private MrGeoTileCache(Properties config)
+{
+  long size = Long.parseLong(config.getProperty(TILE_CACHE_SIZE, TILE_CACHE_SIZE_DEFAULT));
+  offheap = Boolean.parseBoolean(config.getProperty(TILE_CACHE_OFFHEAP, "false"));
+
+  log.info("Tile cache: size: " + size + "MB" + (offheap ? " (off-heap)" : ""));
+
+  metrics = MrGeoMetrics.getInstance(config);
+
+  if (size > 0)
+  {
+    cache = CacheBuilder.newBuilder()
+        .maximumWeight(size * 1024 * 1024)
+        .weigher(new Weigher<Key, Tile>()
+        {
+          @Override
+          public int weigh(Key key, Tile tile)
+          {
+            return ENTRY_OVERHEAD + tile.weight;
+          }
+        })
+        .recordStats()
+        .build();
+
+    MrGeoMetadataCache.getInstance(config).addListener(this);
+  }
+  else
+  {
+    cache = null;
+  }
+}
+
+interface Loader
+{
+  // the tile, or null if it doesn't exist
+  MrGeoRaster load() throws IOException;
+}
+
+/**
+ * Get a tile from the cache, reading it from the image if it isn't there.
+ *
+ * @return the tile, or null if the tile doesn't exist in the image
+ */
+MrGeoRaster get(String layer, final MrsImage image, final long tx, final long ty) throws IOException
+{
+  return get(layer, image.getZoomlevel(), tx, ty, new Loader()
+  {
+    @Override
+    public MrGeoRaster load() throws IOException
+    {
+      return read(image, tx, ty);
+    }
+  });
+}
+
+/**
+ * Get a tile from the cache, using the loader to make it if it isn't there (i.e. for tiles that
+ * don't come straight from an image).
+ *
+ * @return the tile, or null if the tile doesn't exist
+ */
+MrGeoRaster get(String layer, int zoom, long tx, long ty, final Loader loader) throws IOException
+{
+  final Key key = new Key(layer, zoom, tx, ty);
+
+  if (cache == null)
+  {
+    return getUncached(key, loader);
+  }
+
+  // Guava only lets one thread load a key, anyone else asking for it waits for (and shares) the result
+  try
+  {
+    return cache.get(key, new Callable<Tile>()
+    {
+      @Override
+      public Tile call() throws Exception
+      {
+        return encode(loader.load());
+      }
+    }).get();
+  }
+  catch (ExecutionException | UncheckedExecutionException e)
+  {
+    if (e.getCause() instanceof IOException)
+    {
+      throw (IOException) e.getCause();
+    }
+    throw new IOException("Error reading tile " + key, e.getCause());
+  }
+}
+
+// With no cache, still make sure concurrent requests for the same tile only read it once
+private MrGeoRaster getUncached(final Key key, final Loader loader) throws IOException
+{
+  FutureTask<MrGeoRaster> task = new FutureTask<>(new Callable<MrGeoRaster>()
+  {
+    @Override
+    public MrGeoRaster call() throws Exception
+    {
+      return loader.load();
+    }
+  });
+
+  FutureTask<MrGeoRaster> running = inflight.putIfAbsent(key, task);
+  if (running == null)
+  {
+    running = task;
+    try
+    {
+      task.run();
+    }
+    finally
+    {
+      inflight.remove(key, task);
+    }
+  }
+  else
+  {
+    coalesced.incrementAndGet();
+  }
+
+  try
+  {
+    return running.get();
+  }
+  catch (InterruptedException e)
+  {
+    Thread.currentThread().interrupt();
+    throw new InterruptedIOException("Interrupted while reading tile " + key);
+  }
+  catch (ExecutionException e)
+  {
+    if (e.getCause() instanceof IOException)
+    {
+      throw (IOException) e.getCause();
+    }
+    throw new IOException("Error reading tile " + key, e.getCause());
+  }
+}
+
+void invalidate(String layer)
+{
+  if (cache != null)
+  {
+    for (Key key : cache.asMap().keySet())
+    {
+      if (key.layer.equals(layer))
+      {
+        cache.invalidate(key);
+      }
+    }
+  }
+}
+
+@Override
+public void metadataChanged(String name)
+{
+  log.fine("Metadata changed, invalidating cached tiles for: " + name);
+  invalidate(name);
+}
+
+// true if the tile is in the cache (including cached non-existent tiles), without counting as a hit
+boolean contains(String layer, int zoom, long tx, long ty)
+{
+  return cache != null && cache.asMap().containsKey(new Key(layer, zoom, tx, ty));
+}
+
+boolean isEnabled()
+{
+  return cache != null;
+}
+
+long getHitCount()
+{
+  return cache == null ? 0 : cache.stats().hitCount();
+}
+
+long getMissCount()
+{
+  return cache == null ? 0 : cache.stats().missCount();
+}
+
+long getSize()
+{
+  return cache == null ? 0 : cache.size();
+}
+
+@Override
+public String toString()
+{
+  if (cache == null)
+  {
+    return "disabled (coalesced: " + coalesced.get() + ")";
+  }
+
+  CacheStats stats = cache.stats();
+  return "tiles: " + cache.size() + " hits: " + stats.hitCount() + " misses: " + stats.missCount() +
+      " evictions: " + stats.evictionCount();
+}
+
+// Read a tile from storage
+private MrGeoRaster read(MrsImage image, long tx, long ty) throws IOException
+{
+  MrGeoRaster raster = image.getTile(tx, ty);
+  if (raster != null)
+  {
+    metrics.bytesRead(bytes(raster));
+  }
+
+  return raster;
+}
+
+private static int bytes(MrGeoRaster raster)
+{
+  return raster.width() * raster.height() * raster.bands() * (DataBuffer.getDataTypeSize(raster.datatype()) / 8);
+}
+
+private Tile encode(MrGeoRaster raster) throws IOException
+{
+  if (raster == null)
+  {
+    return Tile.EMPTY;
+  }
+
+  if (offheap)
+  {
+    byte[] bytes = RasterWritable.toWritable(raster).getBytes();
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes);
+    buffer.flip();
+
+    return new Tile(null, buffer, bytes.length);
+  }
+
+  return new Tile(raster, null, bytes(raster));
+}
+
+}
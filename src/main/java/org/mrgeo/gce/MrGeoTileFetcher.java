@@ -0,0 +1,335 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import org.geotools.util.logging.Logging;
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.utils.tms.TileBounds;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Fetches the tiles of a single read concurrently on a shared, bounded I/O pool.  The pool size
+ * limits the number of tile reads in flight across the whole plugin, and each read is limited to
+ * a number of tiles in flight at once, so one big request can't starve everyone else.  Tiles are
+ * handed back on the calling thread as they arrive, in no particular order.  Zoom levels that a
+ * pyramid doesn't have are made on the fly by the decimator, and tiles the tile index knows
+ * don't exist are handed back (as null) without any I/O.
+ */
+class MrGeoTileFetcher
+{
+private final static String IO_THREADS = "io.threads";
+private final static String IO_THREADS_DEFAULT = "16";
+private final static String IO_REQUEST_THREADS = "io.request.threads";
+private final static String IO_REQUEST_THREADS_DEFAULT = "8";
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoTileFetcher");
+
+private static MrGeoTileFetcher instance = null;
+
+private final ThreadPoolExecutor executor;
+private final int perRequest;
+
+private final MrGeoImagePool images;
+private final MrGeoTileCache tiles;
+private final MrGeoDecimator decimator;
+private final MrGeoTileIndex index;
+
+interface TileHandler
+{
+  // raster is null if the tile doesn't exist
+  void tile(long tx, long ty, MrGeoRaster raster) throws IOException;
+}
+
+interface BatchHandler
+{
+  // layer is the index of the tile's layer, raster is null if the tile doesn't exist
+  void tile(int layer, long tx, long ty, MrGeoRaster raster) throws IOException;
+}
+
+private static class Result
+{
+  final int layer;
+  final long tx;
+  final long ty;
+  final MrGeoRaster raster;
+
+  Result(int layer, long tx, long ty, MrGeoRaster raster)
+  {
+    this.layer = layer;
+    this.tx = tx;
+    this.ty = ty;
+    this.raster = raster;
+  }
+}
+
+static synchronized MrGeoTileFetcher getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoTileFetcher(config);
+  }
+
+  return instance;
+}
+
+private MrGeoTileFetcher(Properties config)
+{
+  int threads = Integer.parseInt(config.getProperty(IO_THREADS, IO_THREADS_DEFAULT));
+  perRequest = Math.max(1, Integer.parseInt(config.getProperty(IO_REQUEST_THREADS, IO_REQUEST_THREADS_DEFAULT)));
+
+  log.info("Tile fetcher: threads: " + threads + " per request: " + perRequest);
+
+  executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+      new MrGeoThreadFactory("mrgeo-io"));
+  executor.allowCoreThreadTimeOut(true);
+
+  images = MrGeoImagePool.getInstance(config);
+  tiles = MrGeoTileCache.getInstance(config);
+  decimator = MrGeoDecimator.getInstance(config);
+  index = MrGeoTileIndex.getInstance(config);
+}
+
+/**
+ * Read a single tile on the calling thread
+ *
+ * @return the tile, or null if it doesn't exist
+ */
+MrGeoRaster get(String layer, int zoom, long tx, long ty) throws IOException
+{
+  if (index.isMissing(layer, zoom, tx, ty))
+  {
+    return null;
+  }
+
+  return read(layer, zoom, tx, ty);
+}
+
+private MrGeoRaster read(String layer, int zoom, long tx, long ty) throws IOException
+{
+  MrGeoRaster raster;
+  if (decimator.isDecimated(layer, zoom))
+  {
+    raster = decimator.get(layer, zoom, tx, ty, this);
+  }
+  else
+  {
+    MrGeoImagePool.Entry image = images.get(layer, zoom);
+    try
+    {
+      raster = tiles.get(layer, image.image, tx, ty);
+    }
+    finally
+    {
+      images.release(image);
+    }
+  }
+
+  index.record(layer, zoom, tx, ty, raster != null);
+  return raster;
+}
+
+/**
+ * True when requests are waiting for an I/O thread, or most of the threads are in use.  Background
+ * work (i.e. prefetching) should back off.
+ */
+boolean isBusy()
+{
+  return !executor.getQueue().isEmpty() || executor.getActiveCount() * 4 >= executor.getMaximumPoolSize() * 3;
+}
+
+void fetch(String layer, int zoom, TileBounds tb, TileHandler handler) throws IOException
+{
+  List<long[]> ids = new ArrayList<>();
+  for (long ty = tb.n; ty >= tb.s; ty--)
+  {
+    for (long tx = tb.w; tx <= tb.e; tx++)
+    {
+      ids.add(new long[]{tx, ty});
+    }
+  }
+
+  fetch(layer, zoom, ids, handler);
+}
+
+void fetch(String layer, int zoom, List<long[]> ids, final TileHandler handler) throws IOException
+{
+  List<long[]> jobs = new ArrayList<>(ids.size());
+  for (long[] id : ids)
+  {
+    jobs.add(new long[]{0, id[0], id[1]});
+  }
+
+  fetch(new String[]{layer}, zoom, jobs, perRequest, new BatchHandler()
+  {
+    @Override
+    public void tile(int layer, long tx, long ty, MrGeoRaster raster) throws IOException
+    {
+      handler.tile(tx, ty, raster);
+    }
+  });
+}
+
+/**
+ * Fetch the same tiles of several layers (with the same tile grid) in one schedule, so they're
+ * read side by side instead of one layer after the other.  The batch gets the per request limit
+ * for each layer, up to the size of the pool.
+ */
+void fetch(String[] layers, int zoom, TileBounds tb, BatchHandler handler) throws IOException
+{
+  // all the layers' copies of a tile next to each other
+  List<long[]> jobs = new ArrayList<>();
+  for (long ty = tb.n; ty >= tb.s; ty--)
+  {
+    for (long tx = tb.w; tx <= tb.e; tx++)
+    {
+      for (int l = 0; l < layers.length; l++)
+      {
+        jobs.add(new long[]{l, tx, ty});
+      }
+    }
+  }
+
+  fetch(layers, zoom, jobs, Math.min((long) perRequest * layers.length, executor.getMaximumPoolSize()), handler);
+}
+
+// jobs are {layer index, tx, ty}, limit is the number of tiles in flight at once
+private void fetch(final String[] layers, final int zoom, List<long[]> jobs, long limit, BatchHandler handler)
+    throws IOException
+{
+  // tiles known not to exist don't need any I/O
+  List<long[]> wanted = new ArrayList<>(jobs.size());
+  for (long[] job : jobs)
+  {
+    if (index.isMissing(layers[(int) job[0]], zoom, job[1], job[2]))
+    {
+      handler.tile((int) job[0], job[1], job[2], null);
+    }
+    else
+    {
+      wanted.add(job);
+    }
+  }
+
+  // Not worth the hand-off for a single tile.  Decimated tiles are made one at a time, each one
+  // spreads its own full resolution reads over the pool (and waiting on the pool from an I/O
+  // thread could deadlock it)
+  List<long[]> pooled = new ArrayList<>(wanted.size());
+  for (long[] job : wanted)
+  {
+    int l = (int) job[0];
+    if (wanted.size() == 1 || decimator.isDecimated(layers[l], zoom))
+    {
+      handler.tile(l, job[1], job[2], read(layers[l], zoom, job[1], job[2]));
+    }
+    else
+    {
+      pooled.add(job);
+    }
+  }
+
+  if (pooled.isEmpty())
+  {
+    return;
+  }
+
+  CompletionService<Result> completion = new ExecutorCompletionService<>(executor);
+  List<Future<Result>> futures = new ArrayList<>(pooled.size());
+
+  int next = 0;
+  int inflight = 0;
+  try
+  {
+    while (next < pooled.size() || inflight > 0)
+    {
+      while (next < pooled.size() && inflight < limit)
+      {
+        final int l = (int) pooled.get(next)[0];
+        final long tx = pooled.get(next)[1];
+        final long ty = pooled.get(next)[2];
+
+        // each read checks the image out itself, a read still running after this request gave
+        // up (cancel() doesn't stop it) keeps its image open until it's done
+        futures.add(completion.submit(new Callable<Result>()
+        {
+          @Override
+          public Result call() throws Exception
+          {
+            MrGeoImagePool.Entry image = images.get(layers[l], zoom);
+            try
+            {
+              return new Result(l, tx, ty, tiles.get(layers[l], image.image, tx, ty));
+            }
+            finally
+            {
+              images.release(image);
+            }
+          }
+        }));
+
+        next++;
+        inflight++;
+      }
+
+      Result result = completion.take().get();
+      inflight--;
+
+      index.record(layers[result.layer], zoom, result.tx, result.ty, result.raster != null);
+
+      handler.tile(result.layer, result.tx, result.ty, result.raster);
+    }
+  }
+  catch (InterruptedException e)
+  {
+    Thread.currentThread().interrupt();
+    throw new InterruptedIOException("Interrupted while reading tiles of " + Arrays.toString(layers));
+  }
+  catch (ExecutionException e)
+  {
+    if (e.getCause() instanceof IOException)
+    {
+      throw (IOException) e.getCause();
+    }
+    throw new IOException("Error reading tiles of " + Arrays.toString(layers), e.getCause());
+  }
+  finally
+  {
+    // on an error, don't leave the rest of this request's tiles clogging up the pool
+    for (Future<Result> future : futures)
+    {
+      future.cancel(false);
+    }
+  }
+}
+
+}
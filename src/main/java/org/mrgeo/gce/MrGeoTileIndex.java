@@ -0,0 +1,374 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.geotools.util.logging.Logging;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.mrgeo.utils.tms.TileBounds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Which tiles of a pyramid exist, so reads of sparse pyramids don't keep asking storage for tiles
+ * that aren't there.  Tiles outside the layer's bounds are known not to exist from the metadata
+ * alone.  Inside the bounds, each zoom level has a bitmap (2 bits a tile: unknown, exists,
+ * missing) that is filled in as tiles are read, and is kept outside the java heap:  memory-mapped
+ * from a local directory (so it survives restarts), or in a direct buffer.
+ *
+ * A bitmap belongs to one version of the pyramid (its metadata stamp) and is dropped when the
+ * metadata changes.  Pyramids whose version can't be told (not in a hadoop filesystem) only use the
+ * bounds.
+ *
+ * The bitmaps of all layers share a memory limit; past it, the least recently used levels are
+ * dropped (a mapped level keeps what it knows in its file, an in-memory one starts over).  Dropped
+ * buffers are only freed by the garbage collector, as the JVM doesn't free direct memory any other
+ * way, so the JVM's direct memory limit (-XX:MaxDirectMemorySize) needs some room over the limit.
+ */
+class MrGeoTileIndex implements MrGeoMetadataCache.Listener
+{
+private final static String TILE_INDEX_ENABLE = "tile.index.enable";
+private final static String TILE_INDEX_DIR = "tile.index.dir";
+private final static String TILE_INDEX_MAX_SIZE = "tile.index.max.size";
+private final static String TILE_INDEX_MAX_SIZE_DEFAULT = "16";  // 16 MB (64M tiles) per zoom level
+private final static String TILE_INDEX_MEMORY = "tile.index.memory";
+private final static String TILE_INDEX_MEMORY_DEFAULT = "256";  // 256 MB for all levels of all layers
+
+private final static int ENTRY_OVERHEAD = 128;
+
+final static int UNKNOWN = 0;
+final static int EXISTS = 1;
+final static int MISSING = 2;
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoTileIndex");
+
+private static MrGeoTileIndex instance = null;
+
+private final boolean enabled;
+private final File dir;
+private final long maxSize;
+
+private final MrGeoMetadataCache metadata;
+
+// metadata stamp of each layer's bitmaps
+private final ConcurrentMap<String, Long> stamps = new ConcurrentHashMap<>();
+private final Cache<Key, Level> levels;
+
+private final AtomicLong skipped = new AtomicLong();
+
+private static class Key
+{
+  final String layer;
+  final int zoom;
+
+  Key(String layer, int zoom)
+  {
+    this.layer = layer;
+    this.zoom = zoom;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (this == o)
+    {
+      return true;
+    }
+    if (!(o instanceof Key))
+    {
+      return false;
+    }
+
+    Key key = (Key) o;
+    return zoom == key.zoom && layer.equals(key.layer);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return 31 * layer.hashCode() + zoom;
+  }
+}
+
+static class Level
+{
+  final TileBounds valid;
+  final long width;
+
+  // null if there's no bitmap, just the bounds
+  final ByteBuffer bits;
+
+  Level(TileBounds valid, ByteBuffer bits)
+  {
+    this.valid = valid;
+    this.width = valid.e - valid.w + 1;
+    this.bits = bits;
+  }
+
+  boolean contains(long tx, long ty)
+  {
+    return tx >= valid.w && tx <= valid.e && ty >= valid.s && ty <= valid.n;
+  }
+
+  int get(long tx, long ty)
+  {
+    long i = (ty - valid.s) * width + (tx - valid.w);
+    return (bits.get((int) (i >> 2)) >> ((i & 3) * 2)) & 3;
+  }
+
+  // Racing updates of tiles sharing a byte can lose one of them, which only puts that tile back
+  // to unknown (a state only ever goes from unknown to known)
+  void set(long tx, long ty, int state)
+  {
+    long i = (ty - valid.s) * width + (tx - valid.w);
+    int ndx = (int) (i >> 2);
+    int shift = (int) ((i & 3) * 2);
+
+    bits.put(ndx, (byte) ((bits.get(ndx) & ~(3 << shift)) | (state << shift)));
+  }
+}
+
+static synchronized MrGeoTileIndex getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoTileIndex(config);
+  }
+
+  return instance;
+}
+
+// not private, so tests can make their own
+MrGeoTileIndex(Properties config)
+{
+  enabled = Boolean.parseBoolean(config.getProperty(TILE_INDEX_ENABLE, "true"));
+
+  String d = config.getProperty(TILE_INDEX_DIR, "");
+  dir = d.isEmpty() ? null : new File(d);
+
+  maxSize = Long.parseLong(config.getProperty(TILE_INDEX_MAX_SIZE, TILE_INDEX_MAX_SIZE_DEFAULT)) * 1024 * 1024;
+  long memory = Long.parseLong(config.getProperty(TILE_INDEX_MEMORY, TILE_INDEX_MEMORY_DEFAULT)) * 1024 * 1024;
+
+  levels = CacheBuilder.newBuilder()
+      .maximumWeight(memory)
+      .weigher(new Weigher<Key, Level>()
+      {
+        @Override
+        public int weigh(Key key, Level level)
+        {
+          return ENTRY_OVERHEAD + (level.bits == null ? 0 : level.bits.capacity());
+        }
+      })
+      .build();
+
+  metadata = MrGeoMetadataCache.getInstance(config);
+
+  if (enabled)
+  {
+    log.info("Tile index: " + (dir == null ? "in memory" : dir.toString()) + " max: " + (maxSize / (1024 * 1024)) +
+        "MB per level, " + (memory / (1024 * 1024)) + "MB in all");
+
+    metadata.addListener(this);
+  }
+}
+
+/**
+ * True if the tile is known not to exist
+ */
+boolean isMissing(String layer, int zoom, long tx, long ty) throws IOException
+{
+  if (!enabled)
+  {
+    return false;
+  }
+
+  Level level = level(layer, zoom);
+  if (level == null)
+  {
+    return false;
+  }
+
+  if (!level.contains(tx, ty) || (level.bits != null && level.get(tx, ty) == MISSING))
+  {
+    skipped.incrementAndGet();
+    return true;
+  }
+
+  return false;
+}
+
+/**
+ * Remember whether a tile that was read exists
+ */
+void record(String layer, int zoom, long tx, long ty, boolean exists) throws IOException
+{
+  if (!enabled)
+  {
+    return;
+  }
+
+  Level level = level(layer, zoom);
+  if (level != null && level.bits != null && level.contains(tx, ty) && level.get(tx, ty) == UNKNOWN)
+  {
+    level.set(tx, ty, exists ? EXISTS : MISSING);
+  }
+}
+
+long getSkippedCount()
+{
+  return skipped.get();
+}
+
+@Override
+public void metadataChanged(String name)
+{
+  // the pyramid was rebuilt, what we know about it is stale
+  stamps.remove(name);
+  for (Key key : levels.asMap().keySet())
+  {
+    if (key.layer.equals(name))
+    {
+      levels.invalidate(key);
+    }
+  }
+
+  if (dir != null)
+  {
+    delete(new File(dir, name));
+  }
+}
+
+private Level level(final String name, final int zoom) throws IOException
+{
+  if (zoom < 0 || zoom > metadata.get(name).getMaxZoomLevel())
+  {
+    return null;
+  }
+
+  Long stamp = stamps.get(name);
+  if (stamp == null)
+  {
+    stamp = MrGeoMetadataCache.modificationTime(name);
+    stamps.put(name, stamp);
+  }
+
+  final long version = stamp;
+  try
+  {
+    return levels.get(new Key(name, zoom), new Callable<Level>()
+    {
+      @Override
+      public Level call() throws Exception
+      {
+        return createLevel(name, version, zoom);
+      }
+    });
+  }
+  catch (ExecutionException | UncheckedExecutionException e)
+  {
+    if (e.getCause() instanceof IOException)
+    {
+      throw (IOException) e.getCause();
+    }
+    throw new IOException("Error creating the tile index for " + name + " (" + zoom + ")", e.getCause());
+  }
+}
+
+private Level createLevel(String name, long stamp, int zoom) throws IOException
+{
+  MrsPyramidMetadata meta = metadata.get(name);
+  return createLevel(name, stamp, zoom, TMSUtils.boundsToTile(meta.getBounds(), zoom, meta.getTilesize()));
+}
+
+// The level's bitmap, in a file per metadata stamp (so a rebuilt pyramid starts over), or in memory
+Level createLevel(String name, long stamp, int zoom, TileBounds valid)
+{
+  // no version, no bitmap (we couldn't tell when it goes stale)
+  if (stamp == 0)
+  {
+    return new Level(valid, null);
+  }
+
+  long tiles = (valid.e - valid.w + 1) * (valid.n - valid.s + 1);
+  long size = (tiles + 3) / 4;
+  if (size > maxSize || size > Integer.MAX_VALUE)
+  {
+    log.fine("Tile index for " + name + " (" + zoom + ") would be too big: " + size + " bytes");
+    return new Level(valid, null);
+  }
+
+  if (dir == null)
+  {
+    return new Level(valid, ByteBuffer.allocateDirect((int) size));
+  }
+
+  File file = new File(new File(new File(dir, name), Long.toString(stamp)), zoom + ".idx");
+  try
+  {
+    File parent = file.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+    {
+      throw new IOException("Can't create " + parent);
+    }
+
+    // a new file reads as zeros, all unknown.  The mapping stays valid after the file is closed
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+    {
+      return new Level(valid, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+  }
+  catch (IOException e)
+  {
+    log.warning("Can't map tile index " + file + ", keeping it in memory: " + e.getMessage());
+    return new Level(valid, ByteBuffer.allocateDirect((int) size));
+  }
+}
+
+private static void delete(File file)
+{
+  File[] children = file.listFiles();
+  if (children != null)
+  {
+    for (File child : children)
+    {
+      delete(child);
+    }
+  }
+
+  if (file.exists() && !file.delete())
+  {
+    log.warning("Can't delete " + file);
+  }
+}
+
+}
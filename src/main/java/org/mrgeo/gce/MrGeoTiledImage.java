@@ -0,0 +1,235 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.data.raster.RasterUtils;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.utils.tms.TileBounds;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.util.ImagingException;
+import java.awt.*;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A RenderedImage over a block of MrGeo tiles.  The image's tile grid lines up with the MrGeo
+ * tiles (tile 0, 0 is the upper-left tile in the TileBounds), and a tile is only fetched when
+ * something in the rendering chain asks for it.  The image bounds are the requested (cropped)
+ * area within the tiles, so the edge tiles extend past the image, which JAI allows.  If bands is
+ * set, the image only has those bands of the layer.  Where it can, a tile is a view of the MrGeo
+ * tile's storage rather than a copy of it (see MrGeoRasterView).
+ */
+class MrGeoTiledImage extends PlanarImage
+{
+private final String layer;
+private final int zoom;
+private final TileBounds tb;
+private final int[] bands;
+private final double[] nodata;
+
+private final MrGeoTileFetcher fetcher;
+private final MrGeoRasterView views;
+
+private Raster empty = null;
+
+MrGeoTiledImage(String layer, int zoom, TileBounds tb, Rectangle crop, MrsPyramidMetadata meta, int[] bands,
+    MrGeoTileFetcher fetcher, MrGeoRasterView views)
+{
+  super(createLayout(crop, meta, bands), null, null);
+
+  this.layer = layer;
+  this.zoom = zoom;
+  this.tb = tb;
+  this.bands = bands;
+  this.nodata = MrGeoRasterCopier.select(meta.getDefaultValues(), bands);
+  this.fetcher = fetcher;
+  this.views = views;
+}
+
+static SampleModel createSampleModel(MrsPyramidMetadata meta)
+{
+  return createSampleModel(meta, null);
+}
+
+// a tile of the selected bands (or all of them, if bands is null)
+static SampleModel createSampleModel(MrsPyramidMetadata meta, int[] bands)
+{
+  return new BandedSampleModel(meta.getTileType(), meta.getTilesize(), meta.getTilesize(),
+      bands == null ? meta.getBands() : bands.length);
+}
+
+static ColorModel createColorModel(SampleModel sm)
+{
+  return RasterUtils.createColorModel(Raster.createWritableRaster(sm.createCompatibleSampleModel(1, 1), null));
+}
+
+private static ImageLayout createLayout(Rectangle crop, MrsPyramidMetadata meta, int[] bands)
+{
+  SampleModel sm = createSampleModel(meta, bands);
+
+  ImageLayout layout = new ImageLayout();
+  layout.setMinX(crop.x);
+  layout.setMinY(crop.y);
+  layout.setWidth(crop.width);
+  layout.setHeight(crop.height);
+
+  layout.setTileGridXOffset(0);
+  layout.setTileGridYOffset(0);
+  layout.setTileWidth(meta.getTilesize());
+  layout.setTileHeight(meta.getTilesize());
+
+  layout.setSampleModel(sm);
+  layout.setColorModel(createColorModel(sm));
+
+  return layout;
+}
+
+@Override
+public Raster getTile(int tileX, int tileY)
+{
+  final long tx = tb.w + tileX;
+  final long ty = tb.n - tileY;
+
+  MrGeoRaster tile = null;
+  if (contains(tx, ty))
+  {
+    try
+    {
+      tile = fetcher.get(layer, zoom, tx, ty);
+    }
+    catch (IOException e)
+    {
+      throw new ImagingException("Error reading tile " + tx + ", " + ty + " of " + layer + " (" + zoom + ")", e);
+    }
+  }
+
+  return toRaster(tileX, tileY, tile);
+}
+
+// Fetch a batch of tiles concurrently, rather than one after the other
+@Override
+public Raster[] getTiles(Point[] indices)
+{
+  final Raster[] rasters = new Raster[indices.length];
+
+  final List<long[]> ids = new ArrayList<>(indices.length);
+  final Map<Point, Integer> slots = new HashMap<>();
+  for (int i = 0; i < indices.length; i++)
+  {
+    long tx = tb.w + indices[i].x;
+    long ty = tb.n - indices[i].y;
+
+    if (contains(tx, ty))
+    {
+      ids.add(new long[]{tx, ty});
+      slots.put(new Point(indices[i].x, indices[i].y), i);
+    }
+    else
+    {
+      rasters[i] = toRaster(indices[i].x, indices[i].y, null);
+    }
+  }
+
+  if (!ids.isEmpty())
+  {
+    try
+    {
+      fetcher.fetch(layer, zoom, ids, new MrGeoTileFetcher.TileHandler()
+      {
+        @Override
+        public void tile(long tx, long ty, MrGeoRaster raster)
+        {
+          int tileX = (int) (tx - tb.w);
+          int tileY = (int) (tb.n - ty);
+
+          rasters[slots.get(new Point(tileX, tileY))] = toRaster(tileX, tileY, raster);
+        }
+      });
+    }
+    catch (IOException e)
+    {
+      throw new ImagingException("Error reading tiles of " + layer + " (" + zoom + ")", e);
+    }
+  }
+
+  return rasters;
+}
+
+private boolean contains(long tx, long ty)
+{
+  return tx >= tb.w && tx <= tb.e && ty >= tb.s && ty <= tb.n;
+}
+
+private Raster toRaster(int tileX, int tileY, MrGeoRaster tile)
+{
+  final Point location = new Point(tileXToX(tileX), tileYToY(tileY));
+
+  if (tile == null)
+  {
+    return getEmptyTile().createTranslatedChild(location.x, location.y);
+  }
+
+  if (tile.width() == getTileWidth() && tile.height() == getTileHeight())
+  {
+    Raster view = views.wrap(tile, bands, location);
+    if (view != null)
+    {
+      return view;
+    }
+  }
+
+  WritableRaster raster = Raster.createWritableRaster(getSampleModel(), location);
+  MrGeoRasterCopier.copy(tile, 0, 0, getTileWidth(), getTileHeight(), raster, 0, 0, bands);
+
+  return raster;
+}
+
+// A tile full of nodata, shared by all the missing tiles in the image
+private synchronized Raster getEmptyTile()
+{
+  if (empty == null)
+  {
+    WritableRaster raster = Raster.createWritableRaster(getSampleModel(), null);
+
+    double[] samples = new double[getTileWidth() * getTileHeight()];
+    for (int b = 0; b < raster.getNumBands(); b++)
+    {
+      Arrays.fill(samples, nodata[b]);
+      raster.setSamples(0, 0, getTileWidth(), getTileHeight(), b, samples);
+    }
+
+    empty = raster;
+  }
+
+  return empty;
+}
+
+}
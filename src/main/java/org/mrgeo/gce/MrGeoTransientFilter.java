@@ -0,0 +1,142 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.GeoServerPersister;
+import org.geotools.util.logging.Logging;
+
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Keeps GeoServer's persister from writing the MrGeo coverages and layers to the data directory
+ * (catalog.transient), so thousands of generated layers don't turn every startup and update into
+ * thousands of XML writes.  The layers are still added, saved and removed through the catalog, so
+ * every other listener (i.e. GeoWebCache, the resource pool) sees the events as usual; only the
+ * persister is wrapped, and doesn't see adds or changes to coverages (and their layers) in the
+ * MrGeo store.  Removes still go through, so layers persisted before the option was set are cleaned
+ * up.  Everything else (the MrGeo workspace and store included) is persisted as before.
+ */
+class MrGeoTransientFilter implements CatalogListener
+{
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoTransientFilter");
+
+private final CatalogListener persister;
+private final String workspace;
+private final String store;
+
+private MrGeoTransientFilter(CatalogListener persister, String workspace, String store)
+{
+  this.persister = persister;
+  this.workspace = workspace;
+  this.store = store;
+}
+
+/**
+ * Wrap the catalog's persister(s), if they aren't already.  The persister is registered once the
+ * catalog is loaded, which may be after the first update starts, so this is done on every update.
+ */
+static void install(Catalog catalog, String workspace, String store)
+{
+  for (CatalogListener listener : new ArrayList<>(catalog.getListeners()))
+  {
+    if (listener instanceof GeoServerPersister)
+    {
+      catalog.removeListener(listener);
+      catalog.addListener(new MrGeoTransientFilter(listener, workspace, store));
+
+      log.info("MrGeo layers in " + workspace + ":" + store + " won't be written to the data directory");
+    }
+  }
+}
+
+// a coverage in the MrGeo store, or a layer of one
+private boolean isMrGeo(CatalogInfo info)
+{
+  ResourceInfo resource = null;
+  if (info instanceof ResourceInfo)
+  {
+    resource = (ResourceInfo) info;
+  }
+  else if (info instanceof LayerInfo)
+  {
+    resource = ((LayerInfo) info).getResource();
+  }
+
+  if (resource == null)
+  {
+    return false;
+  }
+
+  StoreInfo si = resource.getStore();
+  return si != null && store.equals(si.getName()) && si.getWorkspace() != null &&
+      workspace.equals(si.getWorkspace().getName());
+}
+
+@Override
+public void handleAddEvent(CatalogAddEvent event) throws CatalogException
+{
+  if (!isMrGeo(event.getSource()))
+  {
+    persister.handleAddEvent(event);
+  }
+}
+
+@Override
+public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException
+{
+  persister.handleRemoveEvent(event);
+}
+
+@Override
+public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException
+{
+  if (!isMrGeo(event.getSource()))
+  {
+    persister.handleModifyEvent(event);
+  }
+}
+
+@Override
+public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException
+{
+  if (!isMrGeo(event.getSource()))
+  {
+    persister.handlePostModifyEvent(event);
+  }
+}
+
+@Override
+public void reloaded()
+{
+  persister.reloaded();
+}
+
+}
@@ -0,0 +1,301 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.mrgeo.gce;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.mrgeo.data.raster.MrGeoRaster;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.utils.tms.Bounds;
+import org.mrgeo.utils.tms.Pixel;
+import org.mrgeo.utils.tms.TMSUtils;
+import org.mrgeo.utils.tms.TileBounds;
+import org.opengis.geometry.Envelope;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Reads directly into EPSG:3857 (web mercator) output, so GeoServer doesn't need to warp the
+ * EPSG:4326 tiles.  The 4326 -> 3857 mapping is separable: a mercator column only depends on
+ * longitude (linearly) and a row only depends on latitude, so the resample is a nearest-neighbor
+ * lookup through one column table and one row table.  Row tables are the only expensive part
+ * (transcendental per row), so they're cached per zoom level and requested row span, which repeats
+ * for every tile in a row of a tiled map client.
+ * <p>
+ * The coverages are published in their native EPSG:4326, and GeoServer's own WMS and WCS
+ * rendering always reads a coverage in its native CRS and reprojects the result itself.  So this
+ * path is only taken by callers that use the reader directly and pass a READ_GRIDGEOMETRY2D in
+ * web mercator, e.g. a WPS process or a GeoTools application calling
+ * {@code reader.read(new GeneralParameterValue[]{ READ_GRIDGEOMETRY2D(3857 grid) })}.
+ */
+class MrGeoWebMercator
+{
+private final static String WEBMERCATOR_ENABLE = "webmercator.enable";
+private final static String WEBMERCATOR_CACHE_SIZE = "webmercator.cache.size";
+private final static String WEBMERCATOR_CACHE_SIZE_DEFAULT = "1000";
+
+private final static double EARTH_RADIUS = 6378137.0;
+
+private static final Set<Integer> EPSG_CODES = new HashSet<>(Arrays.asList(3857, 900913, 3785, 102100, 102113));
+
+private static final Logger log = Logging.getLogger("org.mrgeo.gce.MrGeoWebMercator");
+
+private static MrGeoWebMercator instance = null;
+
+private final boolean enabled;
+private final Cache<RowKey, long[]> rowCache;
+private final MrGeoTileFetcher fetcher;
+
+private static class RowKey
+{
+  final int zoom;
+  final int tilesize;
+  final double miny;
+  final double maxy;
+  final int height;
+
+  RowKey(int zoom, int tilesize, double miny, double maxy, int height)
+  {
+    this.zoom = zoom;
+    this.tilesize = tilesize;
+    this.miny = miny;
+    this.maxy = maxy;
+    this.height = height;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (this == o)
+    {
+      return true;
+    }
+    if (!(o instanceof RowKey))
+    {
+      return false;
+    }
+
+    RowKey key = (RowKey) o;
+    return zoom == key.zoom && tilesize == key.tilesize && height == key.height &&
+        Double.compare(key.miny, miny) == 0 && Double.compare(key.maxy, maxy) == 0;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    int result = zoom;
+    result = 31 * result + tilesize;
+    long temp = Double.doubleToLongBits(miny);
+    result = 31 * result + (int) (temp ^ (temp >>> 32));
+    temp = Double.doubleToLongBits(maxy);
+    result = 31 * result + (int) (temp ^ (temp >>> 32));
+    result = 31 * result + height;
+    return result;
+  }
+}
+
+static synchronized MrGeoWebMercator getInstance(Properties config)
+{
+  if (instance == null)
+  {
+    instance = new MrGeoWebMercator(config);
+  }
+
+  return instance;
+}
+
+private MrGeoWebMercator(Properties config)
+{
+  enabled = Boolean.parseBoolean(config.getProperty(WEBMERCATOR_ENABLE, "false"));
+  long size = Long.parseLong(config.getProperty(WEBMERCATOR_CACHE_SIZE, WEBMERCATOR_CACHE_SIZE_DEFAULT));
+
+  rowCache = CacheBuilder.newBuilder().maximumSize(size).build();
+
+  if (enabled)
+  {
+    log.info("Web mercator reads enabled, for readers called directly with an EPSG:3857 grid " +
+        "(GeoServer's WMS/WCS read EPSG:4326 and reproject)");
+  }
+
+  fetcher = MrGeoTileFetcher.getInstance(config);
+}
+
+boolean accepts(CoordinateReferenceSystem crs)
+{
+  if (!enabled || crs == null)
+  {
+    return false;
+  }
+
+  try
+  {
+    Integer code = CRS.lookupEpsgCode(crs, false);
+    return code != null && EPSG_CODES.contains(code);
+  }
+  catch (Exception e)
+  {
+    log.finest("Can't get EPSG code for " + crs.getName() + ": " + e.getMessage());
+  }
+
+  return false;
+}
+
+static double toLongitude(double x)
+{
+  return Math.toDegrees(x / EARTH_RADIUS);
+}
+
+static double toLatitude(double y)
+{
+  return Math.toDegrees(2.0 * Math.atan(Math.exp(y / EARTH_RADIUS)) - Math.PI / 2.0);
+}
+
+/**
+ * Read a width x height image covering the web mercator envelope, from tiles at the zoom level.
+ * tb must cover the geographic bounds of the envelope.  bands selects the layer's bands to read
+ * (null for all of them).
+ */
+BufferedImage getImage(String name, int zoom, final TileBounds tb, Envelope envelope, int width, int height,
+    final MrsPyramidMetadata meta, final int[] bands) throws IOException
+{
+  final int tilesize = meta.getTilesize();
+  final double res = TMSUtils.resolution(zoom, tilesize);
+
+  Bounds actual = TMSUtils.tileToBounds(tb, zoom, tilesize);
+  Pixel ul = TMSUtils.latLonToPixelsUL(actual.n, actual.w, zoom, tilesize);
+
+  // column table:  output column -> pixel column within the tile bounds.  Anything off the edge of
+  // the world gets a value that can't match a tile, while keeping the table sorted
+  final int[] cols = new int[width];
+  double dx = (envelope.getMaximum(0) - envelope.getMinimum(0)) / width;
+  for (int i = 0; i < width; i++)
+  {
+    double lon = toLongitude(envelope.getMinimum(0) + (i + 0.5) * dx);
+    if (lon < -180.0)
+    {
+      cols[i] = Integer.MIN_VALUE;
+    }
+    else if (lon > 180.0)
+    {
+      cols[i] = Integer.MAX_VALUE;
+    }
+    else
+    {
+      cols[i] = (int) ((long) ((lon + 180.0) / res) - ul.px);
+    }
+  }
+
+  // row table:  output row -> pixel row within the tile bounds
+  long[] global = getRows(zoom, tilesize, envelope.getMinimum(1), envelope.getMaximum(1), height);
+  final int[] rows = new int[height];
+  for (int j = 0; j < height; j++)
+  {
+    rows[j] = (int) (global[j] - ul.py);
+  }
+
+  SampleModel sm = MrGeoTiledImage.createSampleModel(meta, bands).createCompatibleSampleModel(width, height);
+  final WritableRaster raster = Raster.createWritableRaster(sm, null);
+  MrGeoRasterCopier.fill(raster, 0, 0, width, height, MrGeoRasterCopier.select(meta.getDefaultValues(), bands));
+
+  fetcher.fetch(name, zoom, tb, new MrGeoTileFetcher.TileHandler()
+  {
+    @Override
+    public void tile(long tx, long ty, MrGeoRaster tile)
+    {
+      if (tile == null)
+      {
+        return;
+      }
+
+      int x0 = (int) (tx - tb.w) * tilesize;
+      int y0 = (int) (tb.n - ty) * tilesize;
+
+      int i0 = lowerBound(cols, x0);
+      int i1 = lowerBound(cols, x0 + tilesize);
+      int j0 = lowerBound(rows, y0);
+      int j1 = lowerBound(rows, y0 + tilesize);
+
+      if (i0 < i1 && j0 < j1)
+      {
+        MrGeoRasterCopier.copyMapped(tile, x0, y0, cols, i0, i1, rows, j0, j1, raster, bands);
+      }
+    }
+  });
+
+  return new BufferedImage(MrGeoTiledImage.createColorModel(sm), raster, false, null);
+}
+
+// Pixel row (from the top of the world) at the zoom level, for each row in the output
+private long[] getRows(int zoom, int tilesize, double miny, double maxy, int height)
+{
+  RowKey key = new RowKey(zoom, tilesize, miny, maxy, height);
+
+  long[] rows = rowCache.getIfPresent(key);
+  if (rows == null)
+  {
+    final double res = TMSUtils.resolution(zoom, tilesize);
+    final double dy = (maxy - miny) / height;
+
+    rows = new long[height];
+    for (int j = 0; j < height; j++)
+    {
+      double lat = toLatitude(maxy - (j + 0.5) * dy);
+      rows[j] = (long) ((90.0 - lat) / res);
+    }
+
+    rowCache.put(key, rows);
+  }
+
+  return rows;
+}
+
+// first index in the (sorted) table whose value is >= value
+private static int lowerBound(int[] table, int value)
+{
+  int lo = 0;
+  int hi = table.length;
+  while (lo < hi)
+  {
+    int mid = (lo + hi) >>> 1;
+    if (table[mid] < value)
+    {
+      lo = mid + 1;
+    }
+    else
+    {
+      hi = mid;
+    }
+  }
+
+  return lo;
+}
+
+}
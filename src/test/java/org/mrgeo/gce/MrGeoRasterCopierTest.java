@@ -0,0 +1,177 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mrgeo.data.raster.MrGeoRaster;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+public class MrGeoRasterCopierTest
+{
+private final static int[] TYPES = {DataBuffer.TYPE_BYTE, DataBuffer.TYPE_SHORT, DataBuffer.TYPE_USHORT,
+    DataBuffer.TYPE_INT, DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_DOUBLE};
+
+private final static int W = 4;
+private final static int H = 3;
+private final static int BANDS = 2;
+
+// every pixel of every band different (and small enough for a byte)
+private static MrGeoRaster source(int type)
+{
+  MrGeoRaster src = MrGeoRaster.createEmptyRaster(W, H, BANDS, type);
+  for (int b = 0; b < BANDS; b++)
+  {
+    for (int y = 0; y < H; y++)
+    {
+      for (int x = 0; x < W; x++)
+      {
+        src.setPixel(x, y, b, (double) (1 + x + W * y + W * H * b));
+      }
+    }
+  }
+
+  return src;
+}
+
+private static WritableRaster banded(int type, int bands)
+{
+  return Raster.createWritableRaster(new BandedSampleModel(type, W, H, bands), null);
+}
+
+@Test
+public void copy()
+{
+  for (int type : TYPES)
+  {
+    MrGeoRaster src = source(type);
+    WritableRaster dst = banded(type, BANDS);
+
+    // the 2x2 block at 1,1 to 2,0
+    MrGeoRasterCopier.copy(src, 1, 1, 2, 2, dst, 2, 0);
+
+    for (int b = 0; b < BANDS; b++)
+    {
+      for (int y = 0; y < H; y++)
+      {
+        for (int x = 0; x < W; x++)
+        {
+          double expected = x >= 2 && y < 2 ? src.getPixelDouble(x - 1, y + 1, b) : 0;
+          Assert.assertEquals("type " + type + " band " + b + " " + x + ", " + y, expected,
+              dst.getSampleDouble(x, y, b), 0);
+        }
+      }
+    }
+  }
+}
+
+@Test
+public void copySelected()
+{
+  for (int type : TYPES)
+  {
+    MrGeoRaster src = source(type);
+    WritableRaster dst = banded(type, 1);
+
+    MrGeoRasterCopier.copy(src, 0, 0, W, H, dst, 0, 0, new int[]{1});
+
+    for (int y = 0; y < H; y++)
+    {
+      for (int x = 0; x < W; x++)
+      {
+        Assert.assertEquals("type " + type + " " + x + ", " + y, src.getPixelDouble(x, y, 1),
+            dst.getSampleDouble(x, y, 0), 0);
+      }
+    }
+  }
+}
+
+@Test
+public void copyMapped()
+{
+  // each dst column and row picks a src column and row, some twice
+  int[] cols = {3, 3, 1, 0};
+  int[] rows = {2, 0, 0};
+
+  for (int type : TYPES)
+  {
+    MrGeoRaster src = source(type);
+    WritableRaster dst = banded(type, BANDS);
+
+    MrGeoRasterCopier.copyMapped(src, 0, 0, cols, 0, W, rows, 0, H, dst);
+
+    for (int b = 0; b < BANDS; b++)
+    {
+      for (int j = 0; j < H; j++)
+      {
+        for (int i = 0; i < W; i++)
+        {
+          Assert.assertEquals("type " + type + " band " + b + " " + i + ", " + j,
+              src.getPixelDouble(cols[i], rows[j], b), dst.getSampleDouble(i, j, b), 0);
+        }
+      }
+    }
+  }
+}
+
+@Test
+public void fill()
+{
+  double[] values = {5, 7};
+  for (int type : TYPES)
+  {
+    WritableRaster dst = banded(type, BANDS);
+
+    MrGeoRasterCopier.fill(dst, 1, 1, 2, 2, values);
+
+    for (int b = 0; b < BANDS; b++)
+    {
+      for (int y = 0; y < H; y++)
+      {
+        for (int x = 0; x < W; x++)
+        {
+          double expected = x >= 1 && x < 3 && y >= 1 ? values[b] : 0;
+          Assert.assertEquals("type " + type + " band " + b + " " + x + ", " + y, expected,
+              dst.getSampleDouble(x, y, b), 0);
+        }
+      }
+    }
+  }
+}
+
+@Test
+public void select()
+{
+  double[] values = {1, 2, 3};
+
+  Assert.assertSame(values, MrGeoRasterCopier.select(values, null));
+  Assert.assertArrayEquals(new double[]{3, 1}, MrGeoRasterCopier.select(values, new int[]{2, 0}), 0);
+}
+
+@Test(expected = IllegalArgumentException.class)
+public void interleaved()
+{
+  WritableRaster dst = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, W, H, BANDS, null);
+  MrGeoRasterCopier.copy(source(DataBuffer.TYPE_BYTE), 0, 0, W, H, dst, 0, 0);
+}
+
+}
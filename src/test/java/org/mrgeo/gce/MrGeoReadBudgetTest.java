@@ -0,0 +1,201 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MrGeoReadBudgetTest
+{
+private final static long KB = 1024;
+private final static long MB = 1024 * KB;
+
+private static Properties config(String budget, String wait)
+{
+  Properties config = new Properties();
+  config.setProperty("metrics.jmx", "false");
+  config.setProperty("read.memory.budget", budget);
+  config.setProperty("read.memory.wait", wait);
+  return config;
+}
+
+@Test
+public void acquireRelease() throws Exception
+{
+  MrGeoReadBudget budget = new MrGeoReadBudget(config("1", "0"));
+
+  budget.acquire("a", 512 * KB);
+  budget.acquire("b", 512 * KB);
+  Assert.assertEquals(MB, budget.getInUse());
+
+  budget.release(512 * KB);
+  Assert.assertEquals(512 * KB, budget.getInUse());
+
+  budget.release(512 * KB);
+  Assert.assertEquals(0, budget.getInUse());
+}
+
+@Test
+public void roundsUp() throws Exception
+{
+  MrGeoReadBudget budget = new MrGeoReadBudget(config("1", "0"));
+
+  budget.acquire("a", 1);
+  Assert.assertEquals(KB, budget.getInUse());
+
+  budget.release(1);
+  Assert.assertEquals(0, budget.getInUse());
+}
+
+@Test
+public void tooBig() throws Exception
+{
+  MrGeoReadBudget budget = new MrGeoReadBudget(config("1", "30"));
+
+  Assert.assertTrue(budget.fits(MB));
+  Assert.assertFalse(budget.fits(MB + 1));
+
+  // fails right away, without waiting
+  try
+  {
+    budget.acquire("a", MB + 1);
+    Assert.fail("Expected an IOException");
+  }
+  catch (IOException ignored)
+  {
+  }
+  Assert.assertEquals(0, budget.getInUse());
+}
+
+@Test
+public void full() throws Exception
+{
+  MrGeoReadBudget budget = new MrGeoReadBudget(config("1", "0"));
+
+  budget.acquire("a", MB);
+  try
+  {
+    budget.acquire("b", KB);
+    Assert.fail("Expected an IOException");
+  }
+  catch (IOException ignored)
+  {
+  }
+  Assert.assertEquals(MB, budget.getInUse());
+}
+
+@Test
+public void waits() throws Exception
+{
+  final MrGeoReadBudget budget = new MrGeoReadBudget(config("1", "30"));
+  budget.acquire("a", MB);
+
+  final AtomicBoolean acquired = new AtomicBoolean();
+  Thread waiter = new Thread(new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      try
+      {
+        budget.acquire("b", 512 * KB);
+        acquired.set(true);
+      }
+      catch (IOException ignored)
+      {
+      }
+    }
+  });
+  waiter.start();
+
+  Thread.sleep(200);
+  Assert.assertFalse(acquired.get());
+
+  budget.release(MB);
+  waiter.join(10000);
+
+  Assert.assertTrue(acquired.get());
+  Assert.assertEquals(512 * KB, budget.getInUse());
+}
+
+@Test
+public void hold() throws Exception
+{
+  MrGeoReadBudget budget = new MrGeoReadBudget(config("1", "0"));
+
+  // held room stays in use while the data is around
+  byte[] data = new byte[(int) (512 * KB)];
+  budget.acquire("a", data.length);
+  budget.hold(data, data.length);
+
+  Assert.assertEquals(512 * KB, budget.getInUse());
+}
+
+@Test
+public void noBudget() throws Exception
+{
+  MrGeoReadBudget budget = new MrGeoReadBudget(config("0", "0"));
+
+  Assert.assertTrue(budget.fits(Long.MAX_VALUE));
+  budget.acquire("a", 1024 * MB);
+  Assert.assertEquals(0, budget.getInUse());
+  budget.release(1024 * MB);
+}
+
+@Test
+public void check()
+{
+  Properties config = config("1", "0");
+  config.setProperty("read.max.pixels", "1000");
+  MrGeoReadBudget budget = new MrGeoReadBudget(config);
+
+  budget.check("a", 1000, MB);
+
+  // read.max.mb defaults to the budget, and 0 bytes (a tiled read) is only checked for pixels
+  budget.check("a", 1000, 0);
+  checkFails(budget, 1001, 0);
+  checkFails(budget, 1000, MB + 1);
+}
+
+@Test
+public void noLimits()
+{
+  Properties config = config("1", "0");
+  config.setProperty("read.max.mb", "0");
+  MrGeoReadBudget budget = new MrGeoReadBudget(config);
+
+  budget.check("a", Long.MAX_VALUE, Long.MAX_VALUE);
+}
+
+private static void checkFails(MrGeoReadBudget budget, long pixels, long bytes)
+{
+  try
+  {
+    budget.check("a", pixels, bytes);
+    Assert.fail("Expected an IllegalArgumentException for " + pixels + " pixels, " + bytes + " bytes");
+  }
+  catch (IllegalArgumentException ignored)
+  {
+  }
+}
+
+}
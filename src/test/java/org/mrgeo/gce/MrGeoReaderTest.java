@@ -0,0 +1,106 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.geotools.coverage.grid.io.OverviewPolicy;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mrgeo.image.MrsPyramidMetadata;
+import org.mrgeo.utils.tms.TMSUtils;
+
+public class MrGeoReaderTest
+{
+private final static int TILESIZE = 512;
+private final static int MIN_ZOOM = 3;
+private final static int MAX_ZOOM = 10;
+
+private MrsPyramidMetadata meta;
+
+@Before
+public void setup()
+{
+  meta = new MrsPyramidMetadata();
+  meta.setTilesize(TILESIZE);
+  meta.setMaxZoomLevel(MAX_ZOOM);
+}
+
+private int zoom(OverviewPolicy policy, double requested)
+{
+  return MrGeoReader.zoomForResolution(meta, MIN_ZOOM, policy, requested);
+}
+
+private static double resolution(int zoom)
+{
+  return TMSUtils.resolution(zoom, TILESIZE);
+}
+
+@Test
+public void exact()
+{
+  Assert.assertEquals(6, zoom(OverviewPolicy.QUALITY, resolution(6)));
+  Assert.assertEquals(6, zoom(OverviewPolicy.SPEED, resolution(6)));
+  Assert.assertEquals(6, zoom(OverviewPolicy.NEAREST, resolution(6)));
+  Assert.assertEquals(MAX_ZOOM, zoom(OverviewPolicy.IGNORE, resolution(6)));
+}
+
+@Test
+public void between()
+{
+  // resolutions double with each zoom out, so this is much closer to 7 than 6
+  double near7 = resolution(7) * 1.2;
+  Assert.assertEquals(7, zoom(OverviewPolicy.QUALITY, near7));
+  Assert.assertEquals(6, zoom(OverviewPolicy.SPEED, near7));
+  Assert.assertEquals(7, zoom(OverviewPolicy.NEAREST, near7));
+  Assert.assertEquals(MAX_ZOOM, zoom(OverviewPolicy.IGNORE, near7));
+
+  double near6 = resolution(7) * 1.8;
+  Assert.assertEquals(7, zoom(OverviewPolicy.QUALITY, near6));
+  Assert.assertEquals(6, zoom(OverviewPolicy.SPEED, near6));
+  Assert.assertEquals(6, zoom(OverviewPolicy.NEAREST, near6));
+}
+
+@Test
+public void finerThanMax()
+{
+  double fine = resolution(MAX_ZOOM) / 4;
+  Assert.assertEquals(MAX_ZOOM, zoom(OverviewPolicy.QUALITY, fine));
+  Assert.assertEquals(MAX_ZOOM, zoom(OverviewPolicy.SPEED, fine));
+  Assert.assertEquals(MAX_ZOOM, zoom(OverviewPolicy.NEAREST, fine));
+  Assert.assertEquals(MAX_ZOOM, zoom(OverviewPolicy.IGNORE, fine));
+}
+
+@Test
+public void coarserThanMin()
+{
+  // never further out than the min zoom
+  double coarse = resolution(1);
+  Assert.assertEquals(MIN_ZOOM, zoom(OverviewPolicy.QUALITY, coarse));
+  Assert.assertEquals(MIN_ZOOM, zoom(OverviewPolicy.SPEED, coarse));
+  Assert.assertEquals(MIN_ZOOM, zoom(OverviewPolicy.NEAREST, coarse));
+  Assert.assertEquals(MAX_ZOOM, zoom(OverviewPolicy.IGNORE, coarse));
+}
+
+@Test
+public void defaultPolicy()
+{
+  double near7 = resolution(7) * 1.2;
+  Assert.assertEquals(zoom(OverviewPolicy.getDefaultPolicy(), near7), zoom(null, near7));
+}
+
+}
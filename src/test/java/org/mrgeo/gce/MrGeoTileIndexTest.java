@@ -0,0 +1,134 @@
+/*
+ *     Copyright 2015 DigitalGlobe, Inc.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.mrgeo.gce;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mrgeo.utils.tms.TileBounds;
+
+import java.io.File;
+import java.util.Properties;
+
+public class MrGeoTileIndexTest
+{
+// 5 x 3 tiles, so rows don't start on a byte boundary
+private final static TileBounds VALID = new TileBounds(10, 20, 14, 22);
+
+@Rule
+public TemporaryFolder folder = new TemporaryFolder();
+
+private static Properties config()
+{
+  Properties config = new Properties();
+  config.setProperty("metrics.jmx", "false");
+  return config;
+}
+
+@Test
+public void packing()
+{
+  MrGeoTileIndex index = new MrGeoTileIndex(config());
+  MrGeoTileIndex.Level level = index.createLevel("layer", 1, 3, VALID);
+
+  // 15 tiles at 2 bits each
+  Assert.assertEquals(4, level.bits.capacity());
+
+  int[] states = {MrGeoTileIndex.UNKNOWN, MrGeoTileIndex.EXISTS, MrGeoTileIndex.MISSING};
+  for (long ty = VALID.s; ty <= VALID.n; ty++)
+  {
+    for (long tx = VALID.w; tx <= VALID.e; tx++)
+    {
+      Assert.assertEquals(MrGeoTileIndex.UNKNOWN, level.get(tx, ty));
+      level.set(tx, ty, states[(int) ((tx + ty) % 3)]);
+    }
+  }
+
+  // setting a tile doesn't disturb its neighbors in the same byte
+  for (long ty = VALID.s; ty <= VALID.n; ty++)
+  {
+    for (long tx = VALID.w; tx <= VALID.e; tx++)
+    {
+      Assert.assertEquals(tx + ", " + ty, states[(int) ((tx + ty) % 3)], level.get(tx, ty));
+    }
+  }
+
+  // and a state can be replaced
+  level.set(VALID.w, VALID.s, MrGeoTileIndex.MISSING);
+  level.set(VALID.w, VALID.s, MrGeoTileIndex.EXISTS);
+  Assert.assertEquals(MrGeoTileIndex.EXISTS, level.get(VALID.w, VALID.s));
+  Assert.assertEquals(states[(int) ((VALID.w + 1 + VALID.s) % 3)], level.get(VALID.w + 1, VALID.s));
+}
+
+@Test
+public void bounds()
+{
+  MrGeoTileIndex.Level level = new MrGeoTileIndex(config()).createLevel("layer", 1, 3, VALID);
+
+  Assert.assertTrue(level.contains(VALID.w, VALID.s));
+  Assert.assertTrue(level.contains(VALID.e, VALID.n));
+  Assert.assertFalse(level.contains(VALID.w - 1, VALID.s));
+  Assert.assertFalse(level.contains(VALID.e, VALID.n + 1));
+}
+
+@Test
+public void noStamp()
+{
+  // can't tell when it goes stale, so only the bounds are kept
+  MrGeoTileIndex.Level level = new MrGeoTileIndex(config()).createLevel("layer", 0, 3, VALID);
+
+  Assert.assertNull(level.bits);
+  Assert.assertTrue(level.contains(VALID.w, VALID.s));
+}
+
+@Test
+public void tooBig()
+{
+  Properties config = config();
+  config.setProperty("tile.index.max.size", "0");
+
+  Assert.assertNull(new MrGeoTileIndex(config).createLevel("layer", 1, 3, VALID).bits);
+}
+
+@Test
+public void stamps() throws Exception
+{
+  File dir = folder.newFolder("index");
+
+  Properties config = config();
+  config.setProperty("tile.index.dir", dir.getPath());
+  MrGeoTileIndex index = new MrGeoTileIndex(config);
+
+  MrGeoTileIndex.Level level = index.createLevel("layer", 1, 3, VALID);
+  level.set(VALID.w, VALID.s, MrGeoTileIndex.MISSING);
+  Assert.assertTrue(new File(dir, "layer/1/3.idx").isFile());
+
+  // the same version of the pyramid picks up what's known
+  Assert.assertEquals(MrGeoTileIndex.MISSING, index.createLevel("layer", 1, 3, VALID).get(VALID.w, VALID.s));
+
+  // a rebuilt pyramid starts over
+  Assert.assertEquals(MrGeoTileIndex.UNKNOWN, index.createLevel("layer", 2, 3, VALID).get(VALID.w, VALID.s));
+  Assert.assertTrue(new File(dir, "layer/2/3.idx").isFile());
+
+  // and a metadata change drops the layer's bitmaps
+  index.metadataChanged("layer");
+  Assert.assertFalse(new File(dir, "layer").exists());
+}
+
+}